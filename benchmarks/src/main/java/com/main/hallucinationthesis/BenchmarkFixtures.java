@@ -0,0 +1,110 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The images and processor shared by the benchmarks.
+ *
+ * Bundled images are resampled the same way thesisCreateExampleImages.m does:
+ * down by the scale and back up again, so that they carry the same blur a
+ * real low-res input would. Synthetic images are uniform noise at the size of
+ * a 2x magnified touch region.
+ */
+final class BenchmarkFixtures {
+
+	// The lanczos'd 96x128 touch region that hallucinate deconstructs
+	static final int SYNTHETIC_WIDTH = 256;
+	static final int SYNTHETIC_HEIGHT = 192;
+
+	private static boolean loaded;
+
+	private BenchmarkFixtures() {
+	}
+
+	static synchronized void loadOpenCv() {
+		if(!loaded) {
+			// Logging would skew the measurements, so it is only kept when asked for
+			if(!Boolean.getBoolean("hallucination.log")) {
+				HallucinationLog.setSink(null);
+			}
+			// Extracts the bundled desktop natives and loads them by absolute path
+			nu.pattern.OpenCV.loadLocally();
+			loaded = true;
+		}
+	}
+
+	/**
+	 * @param source
+	 * 				"synthetic", or the name of an image in the repository root such as "svgTest"
+	 * @param scale
+	 * 				The factor to resample a bundled image by, 1 to use it as is
+	 */
+	static Mat image(String source, double scale) {
+		loadOpenCv();
+		if("synthetic".equals(source)) {
+			Mat noise = new Mat(SYNTHETIC_HEIGHT, SYNTHETIC_WIDTH, CvType.CV_8UC3);
+			Core.randu(noise, 0, 256);
+			return noise;
+		}
+
+		File file = new File(System.getProperty("hallucination.images", ".."), source + ".png");
+		Mat original = Highgui.imread(file.getAbsolutePath());
+		if(original.empty()) {
+			throw new IllegalStateException("Could not read " + file.getAbsolutePath());
+		}
+		if(scale == 1) {
+			return original;
+		}
+		Mat small = new Mat();
+		Imgproc.resize(original, small, new Size(original.cols()*scale, original.rows()*scale), 0, 0, Imgproc.INTER_CUBIC);
+		Mat resampled = new Mat();
+		Imgproc.resize(small, resampled, original.size(), 0, 0, Imgproc.INTER_CUBIC);
+		small.release();
+		original.release();
+		return resampled;
+	}
+
+	/**
+	 * A processor with an empty library, used only for its deconstruction methods.
+	 */
+	static HallucinationProcessor processor() throws IOException {
+		loadOpenCv();
+		File data = new File(System.getProperty("java.io.tmpdir"), "hallucination-bench-data");
+		File pictures = new File(data, "Pictures");
+		pictures.mkdirs();
+		return new HallucinationProcessor(data, new DirectoryLibrarySource(pictures, "svg"), new FileImageStore(pictures));
+	}
+
+	/**
+	 * A library of the bundled image at every example scale plus some noise images,
+	 * each magnified so that levels 4 and 5 of its pyramid hold enough structures.
+	 */
+	static Map<String, ParentStructureTable> library(HallucinationProcessor processor, int magnification) {
+		Map<String, ParentStructureTable> library = new HashMap<String, ParentStructureTable>();
+		double[] scales = {1, 0.5, 0.25, 0.2};
+		for(int s=0; s<scales.length; s++) {
+			library.put("svgTest" + scales[s], processor.deconstructImage(magnify(image("svgTest", scales[s]), magnification)));
+		}
+		for(int n=0; n<4; n++) {
+			library.put("synthetic" + n, processor.deconstructImage(magnify(image("synthetic", 1), magnification)));
+		}
+		return library;
+	}
+
+	static Mat magnify(Mat image, int magnification) {
+		Mat large = new Mat();
+		Imgproc.resize(image, large, new Size(image.cols()*magnification, image.rows()*magnification), 0, 0, Imgproc.INTER_LANCZOS4);
+		image.release();
+		return large;
+	}
+}
@@ -0,0 +1,76 @@
+package com.main.hallucinationthesis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deconstructing a whole image into parent structures, and the per-pixel
+ * feature extraction inside it on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeconstructionBenchmark {
+
+	@Param({"synthetic", "svgTest"})
+	public String source;
+
+	@Param({"1.0", "0.5", "0.25", "0.2"})
+	public double scale;
+
+	private HallucinationProcessor processor;
+	private Mat input;
+
+	// Two laplacian levels standing in for all five feature pyramids,
+	// which costs the same since each is read out in bulk once
+	private Mat level;
+	private Mat parentLevel;
+	private ImagePyramid pyramid;
+
+	@Setup
+	public void setUp() throws Exception {
+		processor = BenchmarkFixtures.processor();
+		input = BenchmarkFixtures.magnify(BenchmarkFixtures.image(source, scale), 2);
+		pyramid = new ImagePyramid(input, processor.getMatPool());
+		level = pyramid.getLaplacian(3);
+		parentLevel = pyramid.getLaplacian(4);
+	}
+
+	@TearDown
+	public void tearDown() {
+		processor.shutdown();
+		pyramid.release();
+		input.release();
+	}
+
+	@Benchmark
+	public ParentStructureTable deconstructImage() {
+		return processor.deconstructImage(input);
+	}
+
+	@Benchmark
+	public ParentStructureTable extractStructures() {
+		FeatureLevel[] featureLevels = {
+				FeatureLevel.read(level, level, level, level, level, processor.getMatPool()),
+				FeatureLevel.read(parentLevel, parentLevel, parentLevel, parentLevel, parentLevel, processor.getMatPool())};
+		ParentStructureTable table = new ParentStructureTable(level.rows()*level.cols(), new double[] {1.0,0.5,0.5,0.25,0.25});
+		processor.extractStructures(featureLevels, 4, table);
+		return table;
+	}
+}
@@ -0,0 +1,104 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw comparison throughput: one query against a run of library structures,
+ * as boxed score differences, as packed vectors one at a time, and as runs
+ * of packed vectors such as the leaves of a k-d tree. Each operation is one comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+	private static final int VECTORS = 4096;
+
+	// The number of vectors compared per call, as in the leaves of a k-d tree
+	@Param({"16", "64"})
+	public int runLength;
+
+	private ParentStructure[] structures;
+	private ParentStructure queryStructure;
+	private float[] packed;
+	private float[] query;
+	private float[] distances;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		Double[] weightings = {1.0,0.5,0.5,0.25,0.25};
+		structures = new ParentStructure[VECTORS];
+		packed = new float[VECTORS*ParentStructure.FEATURE_LENGTH];
+		for(int i=0; i<VECTORS; i++) {
+			structures[i] = new ParentStructure(values(random), values(random), weightings, 4 + i%2, new Point(0, 0));
+			structures[i].packFeatures(packed, i*ParentStructure.FEATURE_LENGTH);
+		}
+		queryStructure = new ParentStructure(values(random), values(random), weightings, 4, new Point(0, 0));
+		query = new float[ParentStructure.FEATURE_LENGTH];
+		queryStructure.packFeatures(query, 0);
+		distances = new float[runLength];
+	}
+
+	private static List<double[]> values(Random random) {
+		List<double[]> values = new ArrayList<double[]>();
+		values.add(new double[] {random.nextInt(256), random.nextInt(256), random.nextInt(256), 0});
+		for(int d=0; d<4; d++) {
+			values.add(new double[] {random.nextInt(256)});
+		}
+		return values;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VECTORS)
+	public double boxedScores() {
+		double nearest = Double.MAX_VALUE;
+		for(int i=0; i<VECTORS; i++) {
+			nearest = Math.min(nearest, Math.abs(structures[i].getWeightedScore() - queryStructure.getWeightedScore()));
+		}
+		return nearest;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VECTORS)
+	public float packedVectors() {
+		float nearest = Float.MAX_VALUE;
+		for(int i=0; i<VECTORS; i++) {
+			nearest = Math.min(nearest, FeatureDistance.squaredDistance(query, 0, packed, i*ParentStructure.FEATURE_LENGTH));
+		}
+		return nearest;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VECTORS)
+	public float packedRuns() {
+		float nearest = Float.MAX_VALUE;
+		for(int start=0; start<VECTORS; start+=runLength) {
+			FeatureDistance.squaredDistances(query, 0, packed, start*ParentStructure.FEATURE_LENGTH, runLength, distances);
+			for(int j=0; j<runLength; j++) {
+				nearest = Math.min(nearest, distances[j]);
+			}
+		}
+		return nearest;
+	}
+}
@@ -0,0 +1,148 @@
+package com.main.hallucinationthesis;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The matching loop of hallucinate: every structure of a deconstructed
+ * touch region searched against a library, with each matcher.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+	/**
+	 * The searches of each searchAll iteration, reported by JMH alongside its timings,
+	 * since the candidates compared per search set the latency each policy pays for its matches.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class SearchCounters {
+		public long searches;
+		public long candidates;
+		public long matched;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			searches = 0;
+			candidates = 0;
+			matched = 0;
+		}
+	}
+
+	@Param({"score", "tree", "treeApproximate", "sharded"})
+	public String matcher;
+
+	// How far each library image is blown up before deconstruction, which sets the library size
+	@Param({"4", "16"})
+	public int libraryMagnification;
+
+	@Param({"first", "best", "top4"})
+	public String policy;
+
+	private HallucinationProcessor processor;
+	private ParentStructureMatcher search;
+	private double threshold;
+	private ParentStructureTable input;
+	private float[] query;
+	private SearchPolicy searchPolicy;
+	private int[] found;
+
+	@Setup
+	public void setUp() throws Exception {
+		processor = BenchmarkFixtures.processor();
+		Map<String, ParentStructureTable> library = BenchmarkFixtures.library(processor, libraryMagnification);
+		if("score".equals(matcher)) {
+			search = new ScoreIndex(library);
+			threshold = 100;
+		} else if("sharded".equals(matcher)) {
+			search = new ShardedMatcher(library, Collections.<String, String>emptyMap(), 1,
+					new ShardedMatcher.MatcherFactory() {
+				@Override
+				public ParentStructureMatcher build(Map<String, ParentStructureTable> shard) {
+					return new KdTreeMatcher(shard, 16);
+				}
+			});
+			threshold = Double.POSITIVE_INFINITY;
+		} else {
+			KdTreeMatcher tree = new KdTreeMatcher(library, 16);
+			if("treeApproximate".equals(matcher)) {
+				tree.setEpsilon(0.5);
+				tree.setMaxChecks(256);
+			}
+			search = tree;
+			threshold = Double.POSITIVE_INFINITY;
+		}
+		input = processor.deconstructImage(BenchmarkFixtures.magnify(BenchmarkFixtures.image("synthetic", 1), 1));
+		query = new float[ParentStructure.FEATURE_LENGTH];
+		if("first".equals(policy)) {
+			searchPolicy = SearchPolicy.firstWithinThreshold();
+		} else if("best".equals(policy)) {
+			searchPolicy = SearchPolicy.best();
+		} else {
+			searchPolicy = SearchPolicy.topK(4);
+		}
+		found = new int[searchPolicy.getK()];
+	}
+
+	@Setup(Level.Iteration)
+	public void resetCounts() {
+		searchPolicy.resetCounts();
+	}
+
+	@TearDown
+	public void tearDown() {
+		processor.shutdown();
+	}
+
+	@Benchmark
+	public int matchAll() {
+		int hits = 0;
+		for(int i=0; i<input.size(); i++) {
+			input.packFeatures(i, query, 0);
+			if(search.findMatch(query, 0, threshold) >= 0) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int searchAll(SearchCounters counters) {
+		SearchPolicy.Search policySearch = searchPolicy.newSearch(System.nanoTime());
+		int hits = 0;
+		for(int i=0; i<input.size(); i++) {
+			input.packFeatures(i, query, 0);
+			int count = search.findWithin(query, 0, input.getPyramidHeight(i), threshold, policySearch, found);
+			policySearch.countSearch(count);
+			if(count > 0) {
+				hits++;
+			}
+		}
+		searchPolicy.merge(policySearch);
+		counters.searches = searchPolicy.getSearches();
+		counters.candidates = searchPolicy.getCandidates();
+		counters.matched = searchPolicy.getMatched();
+		return hits;
+	}
+}
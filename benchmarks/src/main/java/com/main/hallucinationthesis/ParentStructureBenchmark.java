@@ -0,0 +1,80 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scoring and packing a single parent structure, both as an object and as a table row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParentStructureBenchmark {
+
+	private static final int ROWS = 1024;
+
+	private List<double[]> current;
+	private List<double[]> parent;
+	private Double[] weightings = {1.0,0.5,0.5,0.25,0.25};
+	private ParentStructureTable table;
+	private float[] packed;
+	private int row;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		current = values(random);
+		parent = values(random);
+		table = new ParentStructureTable(ROWS, new double[] {1.0,0.5,0.5,0.25,0.25});
+		for(int i=0; i<ROWS; i++) {
+			int r = table.add(4 + i%2, i%32, i/32);
+			table.setLevelValues(r, false, new double[] {random.nextInt(256), random.nextInt(256), random.nextInt(256)},
+					random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+		packed = new float[ParentStructure.FEATURE_LENGTH];
+	}
+
+	private static List<double[]> values(Random random) {
+		List<double[]> values = new ArrayList<double[]>();
+		values.add(new double[] {random.nextInt(256), random.nextInt(256), random.nextInt(256), 0});
+		for(int d=0; d<4; d++) {
+			values.add(new double[] {random.nextInt(256)});
+		}
+		return values;
+	}
+
+	@Benchmark
+	public ParentStructure calculateWeightedScore() {
+		return new ParentStructure(current, parent, weightings, 4, new Point(0, 0));
+	}
+
+	@Benchmark
+	public double tableWeightedScore() {
+		row = (row+1) % ROWS;
+		return table.getWeightedScore(row);
+	}
+
+	@Benchmark
+	public float[] tablePackFeatures() {
+		row = (row+1) % ROWS;
+		table.packFeatures(row, packed, 0);
+		return packed;
+	}
+}
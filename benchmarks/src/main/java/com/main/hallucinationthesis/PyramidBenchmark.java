@@ -0,0 +1,71 @@
+package com.main.hallucinationthesis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the shared pyramid levels that deconstructImage reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PyramidBenchmark {
+
+	@Param({"synthetic", "svgTest"})
+	public String source;
+
+	@Param({"1.0", "0.5", "0.25", "0.2"})
+	public double scale;
+
+	private Mat input;
+	private MatPool pool;
+
+	@Setup
+	public void setUp() throws Exception {
+		BenchmarkFixtures.loadOpenCv();
+		input = BenchmarkFixtures.magnify(BenchmarkFixtures.image(source, scale), 2);
+		pool = new MatPool(32L << 20);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.clear();
+		input.release();
+	}
+
+	@Benchmark
+	public Mat gaussianPyramid() {
+		ImagePyramid pyramid = new ImagePyramid(input, pool);
+		Mat top = pyramid.getGaussian(6);
+		pyramid.release();
+		return top;
+	}
+
+	@Benchmark
+	public ImagePyramid deconstructionLevels() {
+		// Every level deconstructImage asks for, from one pyramid
+		ImagePyramid pyramid = new ImagePyramid(input, pool);
+		pyramid.getGaussian(5);
+		pyramid.getGaussian(6);
+		pyramid.getLaplacian(3);
+		pyramid.getLaplacian(4);
+		pyramid.release();
+		return pyramid;
+	}
+}
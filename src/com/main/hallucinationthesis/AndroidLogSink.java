@@ -0,0 +1,14 @@
+package com.main.hallucinationthesis;
+
+import android.util.Log;
+
+/**
+ * Forwards the processor's messages to the Android log.
+ */
+public class AndroidLogSink implements HallucinationLog.Sink {
+
+	@Override
+	public void log(String tag, String message) {
+		Log.i(tag, message);
+	}
+}
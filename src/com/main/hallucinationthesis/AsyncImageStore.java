@@ -0,0 +1,229 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import org.opencv.core.Mat;
+
+/**
+ * An ImageStore that hands its writes to a background thread, so that
+ * encoding images to disk adds nothing to the time taken to hallucinate them.
+ *
+ * Each write copies the image into a queue, which the writer thread drains in
+ * batches into the store it wraps. The queue is bounded in bytes: once it is
+ * full, writes block until the writer has caught up, so a slow disk slows the
+ * processing down rather than running out of memory. A write replaces any
+ * image still queued under the same name, which would only have been
+ * overwritten, so give each image its own name to keep every one of them.
+ * Reads go straight to the wrapped store. Thread safe.
+ */
+public class AsyncImageStore implements ImageStore {
+
+	private static final String TAG = "AsyncImageStore";
+
+	private final ImageStore store;
+	private final long maxBytes;
+
+	// The images still to be written, in the order they were first queued
+	private final Map<String, Mat> pending;
+	private long pendingBytes;
+
+	// The images taken out of the queue but not yet written, which still count towards the bound
+	private int writing;
+	private long writingBytes;
+
+	private final Thread writer;
+	private boolean closed;
+
+	private long written;
+	private long coalesced;
+
+	/**
+	 * @param store
+	 * 				The store the images are written to on the background thread
+	 * @param maxBytes
+	 * 				The most bytes of images to hold before writes block; a larger image is
+	 * 				still taken once the queue is empty
+	 * @throws NullPointerException
+	 * 				If the store is null
+	 * @throws IllegalArgumentException
+	 * 				If the bound is not positive
+	 */
+	public AsyncImageStore(ImageStore store, long maxBytes) {
+		if(store==null) {
+			throw new NullPointerException("Store cannot be null");
+		}
+		if(maxBytes<1) {
+			throw new IllegalArgumentException("Bound must be positive");
+		}
+		this.store = store;
+		this.maxBytes = maxBytes;
+		this.pending = new LinkedHashMap<String, Mat>();
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeAll();
+			}
+		}, "HallucinationWriter");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public Mat read(File file) {
+		return this.store.read(file);
+	}
+
+	/**
+	 * Queues a copy of the image, blocking while the queue is full.
+	 *
+	 * @throws IllegalStateException
+	 * 				If the store has been shut down or closed
+	 * @throws CancellationException
+	 * 				If the thread is interrupted while waiting for room
+	 */
+	@Override
+	public void write(String name, Mat image) {
+		Mat copy = image.clone();
+		long size = bytes(copy);
+		synchronized(this) {
+			try {
+				while(!this.closed && this.queuedBytes() > 0 && this.queuedBytes() + size > this.maxBytes) {
+					this.wait();
+				}
+			} catch (InterruptedException e) {
+				copy.release();
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Interrupted waiting to write " + name);
+			}
+			if(this.closed) {
+				copy.release();
+				throw new IllegalStateException("Store is closed");
+			}
+			Mat replaced = this.pending.remove(name);
+			if(replaced != null) {
+				this.pendingBytes -= bytes(replaced);
+				replaced.release();
+				this.coalesced++;
+			}
+			this.pending.put(name, copy);
+			this.pendingBytes += size;
+			this.notifyAll();
+		}
+	}
+
+	// Runs on the writer thread until the store is shut down and the queue is empty
+	private void writeAll() {
+		List<Map.Entry<String, Mat>> batch = new ArrayList<Map.Entry<String, Mat>>();
+		while(true) {
+			synchronized(this) {
+				while(this.pending.isEmpty() && !this.closed) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						// Only close stops the writer, so that no queued image is lost
+					}
+				}
+				if(this.pending.isEmpty()) {
+					return;
+				}
+				batch.addAll(this.pending.entrySet());
+				this.pending.clear();
+				this.writing = batch.size();
+				this.writingBytes = this.pendingBytes;
+				this.pendingBytes = 0;
+			}
+
+			for(Iterator<Map.Entry<String, Mat>> it = batch.iterator(); it.hasNext();) {
+				Map.Entry<String, Mat> entry = it.next();
+				Mat image = entry.getValue();
+				try {
+					this.store.write(entry.getKey(), image);
+				} catch (RuntimeException e) {
+					HallucinationLog.i(TAG, "Could not write " + entry.getKey() + ": " + e.getMessage());
+				}
+				long size = bytes(image);
+				image.release();
+				synchronized(this) {
+					this.writing--;
+					this.writingBytes -= size;
+					this.written++;
+					this.notifyAll();
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Blocks until every image queued so far has been written.
+	 *
+	 * @throws InterruptedException
+	 * 				If the thread was interrupted while waiting
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while(!this.pending.isEmpty() || this.writing > 0) {
+			this.wait();
+		}
+	}
+
+	/**
+	 * Refuses further writes and returns straight away, while the writer thread
+	 * finishes writing everything still queued and then stops. Safe to call
+	 * from a thread that must not wait on the disk, such as the UI thread.
+	 */
+	public synchronized void shutdown() {
+		this.closed = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Writes out everything still queued and stops the writer thread. Further writes are refused.
+	 *
+	 * @throws InterruptedException
+	 * 				If the thread was interrupted while waiting for the writer
+	 */
+	public void close() throws InterruptedException {
+		shutdown();
+		this.writer.join();
+	}
+
+	private long queuedBytes() {
+		return this.pendingBytes + this.writingBytes;
+	}
+
+	private static long bytes(Mat mat) {
+		return mat.total()*mat.elemSize();
+	}
+
+	public ImageStore getStore() {
+		return store;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return The bytes of images queued or being written
+	 */
+	public synchronized long getQueuedBytes() {
+		return queuedBytes();
+	}
+
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return The number of queued images replaced by a later one of the same name
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+}
@@ -1,7 +1,7 @@
 package com.main.hallucinationthesis;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
@@ -9,11 +9,13 @@ import org.opencv.android.JavaCameraView;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
 import org.opencv.highgui.Highgui;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -29,12 +31,50 @@ import android.view.WindowManager;
 public class CameraActivity extends Activity implements CvCameraViewListener, View.OnTouchListener {
 
 	private static final String  	TAG = "HallucinationThesis::CameraActivity";
-	private static Context 			cContext;
+	// How far a structure's features may drift between live frames and keep its match
+	private static final double		LIVE_TOLERANCE = 0.5;
+	// How long matching each live frame may take before searches settle for the best found so far
+	private static final long		LIVE_BUDGET_MS = 500;
+	// The most bytes of images waiting to be saved before the worker waits for the disk
+	private static final long		SAVE_QUEUE_BYTES = 64L << 20;
+	// How often the metrics drawn over the preview are brought up to date
+	private static final long		METRICS_REFRESH_MS = 500;
     private CameraBridgeViewBase 	cOpenCvCameraView;
     private HallucinationProcessor	hProcess;
+    private HallucinationWorker		hWorker;
     private MenuItem             	cImageProcessOn;
     private MenuItem             	cImageProcessOff;
+    private MenuItem             	cFullFrameOn;
+    private MenuItem             	cFullFrameOff;
+    private MenuItem             	cLiveOn;
+    private MenuItem             	cLiveOff;
+    private MenuItem             	cMetricsOn;
+    private MenuItem             	cMetricsOff;
+    // Set from the menu on the UI thread and read on the camera thread
+    private volatile boolean			cLive;
+    private FileImageStore			cImages;
+    private AsyncImageStore			cImageWriter;
+    // Numbers each hallucination's saved images, so that none overwrite another
+    private int						cHallucinations;
     private Mat						cRgba;
+    // The lines of the last metrics snapshot and when it was taken, or null while metrics are hidden
+    private volatile String[]		cMetricsLines;
+    private long					cMetricsTaken;
+    
+    // Results arrive on the worker thread; the images themselves are saved by the processor
+    private HallucinationWorker.Listener hListener = new HallucinationWorker.Listener() {
+        @Override
+        public void onHallucinated(Mat result) {
+            Log.i(TAG, "Hallucination finished: " + result.size().toString());
+            result.release();
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            Log.d(TAG, "HallucinationProcessor failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    };
     
     // Provide a callback function to initiate openCV on application load
     private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
@@ -84,8 +124,28 @@ public class CameraActivity extends Activity implements CvCameraViewListener, Vi
         
         File path = new File(s);
         
-        hProcess = new HallucinationProcessor(path);
-        hProcess.setContext(cContext);
+        // Route the processor's logging to logcat, and keep the library and results in Pictures
+        HallucinationLog.setSink(new AndroidLogSink());
+        File pictures = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        // Images are saved in the background, under new names rather than over earlier runs
+        cImages = new FileImageStore(pictures);
+        cImages.setOverwriting(false);
+        cImageWriter = new AsyncImageStore(cImages, SAVE_QUEUE_BYTES);
+        hProcess = new HallucinationProcessor(path, new DirectoryLibrarySource(pictures, "svg"), cImageWriter);
+        hWorker = new HallucinationWorker(hProcess);
+        
+        // The library is deconstructed in the background; touches before it is ready use what is built so far
+        hProcess.setLibraryListener(new HallucinationProcessor.LibraryListener() {
+            @Override
+            public void onLibraryProgress(int imagesBuilt, int imagesTotal) {
+                Log.i(TAG, "Library images ready: " + imagesBuilt + "/" + imagesTotal);
+            }
+
+            @Override
+            public void onLibraryReady() {
+                Log.i(TAG, "Library ready");
+            }
+        });
     }
     
 	// Default pause function, disables the view, stops processes running
@@ -109,6 +169,13 @@ public class CameraActivity extends Activity implements CvCameraViewListener, Vi
         super.onDestroy();
         if (cOpenCvCameraView != null)
             cOpenCvCameraView.disableView();
+        if (hWorker != null)
+            hWorker.shutdown();
+        if (hProcess != null)
+            hProcess.shutdown();
+        // Joining the writer here would hold up the UI thread for as long as the disk takes
+        if (cImageWriter != null)
+            cImageWriter.shutdown();
     }
     
     @Override
@@ -116,6 +183,12 @@ public class CameraActivity extends Activity implements CvCameraViewListener, Vi
         Log.i(TAG, "called onCreateOptionsMenu()");
         cImageProcessOn = menu.add("Start Processing");
         cImageProcessOff = menu.add("Stop Processing");
+        cFullFrameOn = menu.add("Full Frame");
+        cFullFrameOff = menu.add("Touched Region");
+        cLiveOn = menu.add("Start Live");
+        cLiveOff = menu.add("Stop Live");
+        cMetricsOn = menu.add("Show Metrics");
+        cMetricsOff = menu.add("Hide Metrics");
         return true;
     }
 
@@ -126,6 +199,31 @@ public class CameraActivity extends Activity implements CvCameraViewListener, Vi
             hProcess.enableProcessing();
         } else if (item == cImageProcessOff) {
             hProcess.disableProcessing();
+        } else if (item == cFullFrameOn) {
+            hProcess.enableFullFrame();
+        } else if (item == cFullFrameOff) {
+            hProcess.disableFullFrame();
+        } else if (item == cLiveOn) {
+            // Live mode hallucinates whole frames back to back, reusing matches wherever the view is still
+            hProcess.enableFullFrame();
+            hProcess.setCoherenceCache(new CoherenceCache(LIVE_TOLERANCE));
+            hProcess.setSearchPolicy(SearchPolicy.deadline(LIVE_BUDGET_MS, TimeUnit.MILLISECONDS));
+            // Saving every live frame would only hold the stream up on the disk, and copying them for the writer
+            hProcess.setSavingImages(false);
+            cLive = true;
+        } else if (item == cLiveOff) {
+            cLive = false;
+            Log.i(TAG, "Live search " + hProcess.getSearchPolicy());
+            hProcess.setCoherenceCache(null);
+            hProcess.setSearchPolicy(SearchPolicy.best());
+            hProcess.setSavingImages(true);
+        } else if (item == cMetricsOn) {
+            hProcess.getSearchPolicy().resetCounts();
+            hProcess.setMetrics(new HallucinationMetrics());
+        } else if (item == cMetricsOff) {
+            Log.i(TAG, "Metrics\n" + hProcess.snapshotMetrics());
+            hProcess.setMetrics(null);
+            cMetricsLines = null;
         }
         return true;
     }
@@ -147,6 +245,9 @@ public class CameraActivity extends Activity implements CvCameraViewListener, Vi
 	    	
 	        int x = (int)event.getX() - xOffset;
 	        int y = (int)event.getY() - yOffset;
+	        
+	        // A new touch supersedes whatever is still being hallucinated
+	        hWorker.cancel();
 	    	hProcess.touchEvent(x,y);
 	    	
 	        return true;
@@ -165,14 +266,45 @@ public class CameraActivity extends Activity implements CvCameraViewListener, Vi
 
 
     public Mat onCameraFrame(Mat inputFrame) {
-    	try {
-    		cRgba = hProcess.hallucinate(inputFrame,2,0);
+    	// Only copy the frame or touched region here, so the preview is never held up by the worker
+    	if(cLive && hProcess.ishProcessingEnabled()) {
+    		// Frames that arrive while the last one is still being hallucinated are skipped
+    		if(!hWorker.isBusy()) {
+    			hWorker.submitFrame(inputFrame.clone(), 2, cHallucinations++, hListener);
+    		}
+    	} else if(hProcess.ishProcessingEnabled() && hProcess.ishOnTouch()) {
+    		if(hProcess.ishFullFrame()) {
+    			hWorker.submitFrame(inputFrame.clone(), 2, cHallucinations++, hListener);
+    		} else {
+    			hWorker.submit(hProcess.copyTouchRegion(inputFrame), 2, cHallucinations++, hListener);
+    		}
     		hProcess.sethOnTouch(false);
-		} catch (IOException e) {
-			Log.d(TAG, "HallucinationProcessor IOException writing to file");
-			e.printStackTrace();
-		}
+    	}
+    	// The worker has its own copies by now, so the metrics can be drawn over the preview itself
+    	if(hProcess.getMetrics() != null) {
+    		drawMetrics(inputFrame);
+    	}
+    	cRgba = inputFrame;
         return cRgba;
     }
+    
+    private void drawMetrics(Mat frame) {
+    	long now = System.currentTimeMillis();
+    	// The menu may hide the metrics from the UI thread at any time, so the lines are read once
+    	String[] lines = cMetricsLines;
+    	if(lines == null || now - cMetricsTaken >= METRICS_REFRESH_MS) {
+    		HallucinationMetrics.Snapshot snapshot = hProcess.snapshotMetrics();
+    		if(snapshot == null) {
+    			return;
+    		}
+    		lines = snapshot.toString().split("\n");
+    		cMetricsLines = lines;
+    		cMetricsTaken = now;
+    	}
+    	for(int i=0; i<lines.length; i++) {
+    		Core.putText(frame, lines[i], new Point(10, 20 + 18*i), Core.FONT_HERSHEY_SIMPLEX, 0.45,
+    				new Scalar(255, 255, 0, 255));
+    	}
+    }
 	
 }
\ No newline at end of file
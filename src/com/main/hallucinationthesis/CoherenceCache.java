@@ -0,0 +1,246 @@
+package com.main.hallucinationthesis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Carries matches over from one frame to the next, so that a live stream of
+ * nearly identical camera frames only searches the library where the picture
+ * actually changed.
+ *
+ * Each tile of a full frame hallucination is remembered by its position, with
+ * a hash of its low-res pixels and the packed feature vector, position and
+ * match of every one of its parent structures. On the next frame a tile whose pixels are
+ * unchanged reuses all of its matches without being deconstructed at all, and
+ * otherwise each structure whose features moved no further than the tolerance
+ * keeps its previous match, leaving only the rest to be searched. Everything is
+ * forgotten when the frame geometry changes, and a tile is only reused against
+ * the same matcher, threshold and search policy it was matched with.
+ *
+ * A cache follows one stream of frames; it is thread safe, but interleaving
+ * unrelated frames only wastes it.
+ */
+public class CoherenceCache {
+
+	private static final int FEATURE_LENGTH = ParentStructure.FEATURE_LENGTH;
+
+	// The 64 bit FNV-1a parameters
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * What one tile matched to in an earlier frame.
+	 */
+	static final class Tile {
+		private final long contentHash;
+		private final float[] queries;
+		private final byte[] levels;
+		private final short[] pixelX;
+		private final short[] pixelY;
+		private final int[] matches;
+		// The structures whose searches were cut short, or null if none were
+		private final boolean[] cutShort;
+		private final ParentStructureMatcher matcher;
+		private final double threshold;
+		private final SearchPolicy policy;
+
+		private Tile(long contentHash, float[] queries, ParentStructureTable structures, int[] matches,
+				boolean[] cutShort, ParentStructureMatcher matcher, double threshold, SearchPolicy policy) {
+			this.contentHash = contentHash;
+			this.queries = queries;
+			this.levels = structures.getLevelColumn();
+			this.pixelX = structures.getPixelXColumn();
+			this.pixelY = structures.getPixelYColumn();
+			this.matches = matches;
+			this.cutShort = cutShort;
+			this.matcher = matcher;
+			this.threshold = threshold;
+			this.policy = policy;
+		}
+
+		private boolean matchedWith(ParentStructureMatcher matcher, double threshold, SearchPolicy policy) {
+			return this.matcher == matcher && this.threshold == threshold && this.policy == policy;
+		}
+
+		int[] getMatches() {
+			return matches;
+		}
+
+		byte[] getLevels() {
+			return levels;
+		}
+
+		short[] getPixelX() {
+			return pixelX;
+		}
+
+		short[] getPixelY() {
+			return pixelY;
+		}
+	}
+
+	private final double tolerance;
+
+	private String geometry;
+	private final Map<Integer, Tile> tiles;
+
+	private long tilesReused;
+	private long structuresReused;
+	private long structuresSearched;
+
+	/**
+	 * @param tolerance
+	 * 				How far a structure's packed features may move, in weighted L^2 distance,
+	 * 				and still keep its previous match
+	 * @throws IllegalArgumentException
+	 * 				If the tolerance is negative
+	 */
+	public CoherenceCache(double tolerance) {
+		if(tolerance<0) {
+			throw new IllegalArgumentException("Tolerance cannot be negative");
+		}
+		this.tolerance = tolerance;
+		this.tiles = new HashMap<Integer, Tile>();
+	}
+
+	/**
+	 * Starts a frame, forgetting every tile if the frame is laid out differently to the last.
+	 *
+	 * @param frameGeometry
+	 * 				Identifies the frame size, magnification and tiling
+	 */
+	synchronized void startFrame(String frameGeometry) {
+		if(!frameGeometry.equals(this.geometry)) {
+			this.tiles.clear();
+			this.geometry = frameGeometry;
+		}
+	}
+
+	/**
+	 * @return The tile from the last frame if its pixels are unchanged and it can be
+	 * 			reused as is, otherwise null, as when any of its searches were cut short
+	 */
+	synchronized Tile findUnchanged(int tile, long contentHash, ParentStructureMatcher matcher, double threshold,
+			SearchPolicy policy) {
+		Tile previous = this.tiles.get(tile);
+		if(previous == null || previous.contentHash != contentHash || !previous.matchedWith(matcher, threshold, policy)
+				|| previous.cutShort != null) {
+			return null;
+		}
+		this.tilesReused++;
+		this.structuresReused += previous.queries.length/FEATURE_LENGTH;
+		return previous;
+	}
+
+	/**
+	 * Copies across the previous match of every structure whose features are within
+	 * the tolerance of the same structure in the last frame and whose search ran to the
+	 * end. The rest are left as they are, to be searched afresh.
+	 *
+	 * @param queries
+	 * 				The packed features of each structure of the tile, FEATURE_LENGTH apiece
+	 * @param matches
+	 * 				The policy's number of results for each structure, filled in where previous ones are reused
+	 * @param unmatched
+	 * 				The value that marks a structure still to be searched
+	 * @return The number of matches reused
+	 */
+	int reuseMatches(int tile, float[] queries, int[] matches, int unmatched,
+			ParentStructureMatcher matcher, double threshold, SearchPolicy policy) {
+		Tile previous;
+		synchronized(this) {
+			previous = this.tiles.get(tile);
+		}
+		int count = queries.length/FEATURE_LENGTH;
+		int stride = policy.getK();
+		int reused = 0;
+		if(previous != null && previous.matchedWith(matcher, threshold, policy)
+				&& previous.matches.length == matches.length) {
+			double limit = this.tolerance*this.tolerance;
+			for(int i=0; i<count; i++) {
+				if(matches[i*stride] == unmatched && (previous.cutShort == null || !previous.cutShort[i])
+						&& squaredDistance(previous.queries, queries, i*FEATURE_LENGTH) <= limit) {
+					System.arraycopy(previous.matches, i*stride, matches, i*stride, stride);
+					reused++;
+				}
+			}
+		}
+		synchronized(this) {
+			this.structuresReused += reused;
+			this.structuresSearched += count - reused;
+		}
+		return reused;
+	}
+
+	/**
+	 * Remembers what a tile matched to in this frame. The arrays, and the
+	 * position columns of the structures, are kept, not copied. Matches from
+	 * searches that were cut short are never reused, so that a deadline that
+	 * ran out only degrades the frame it ran out in.
+	 *
+	 * @param cutShort
+	 * 				Set for each structure whose search was cut short, or null if none were
+	 */
+	synchronized void put(int tile, long contentHash, float[] queries, ParentStructureTable structures, int[] matches,
+			boolean[] cutShort, ParentStructureMatcher matcher, double threshold, SearchPolicy policy) {
+		boolean anyCutShort = false;
+		if(cutShort != null) {
+			for(int i=0; i<cutShort.length && !anyCutShort; i++) {
+				anyCutShort = cutShort[i];
+			}
+		}
+		this.tiles.put(tile, new Tile(contentHash, queries, structures, matches, anyCutShort ? cutShort : null,
+				matcher, threshold, policy));
+	}
+
+	private static double squaredDistance(float[] a, float[] b, int offset) {
+		double sum = 0;
+		for(int d=offset; d<offset+FEATURE_LENGTH; d++) {
+			double difference = a[d] - b[d];
+			sum += difference*difference;
+		}
+		return sum;
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the first length bytes of some pixels.
+	 */
+	static long contentHash(byte[] pixels, int length) {
+		long hash = FNV_OFFSET;
+		for(int i=0; i<length; i++) {
+			hash ^= pixels[i] & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Forgets every tile.
+	 */
+	public synchronized void clear() {
+		this.tiles.clear();
+		this.geometry = null;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return The number of tiles reused whole because their pixels were unchanged
+	 */
+	public synchronized long getTilesReused() {
+		return tilesReused;
+	}
+
+	/**
+	 * @return The number of structures that kept an earlier match instead of being searched
+	 */
+	public synchronized long getStructuresReused() {
+		return structuresReused;
+	}
+
+	public synchronized long getStructuresSearched() {
+		return structuresSearched;
+	}
+}
@@ -0,0 +1,63 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A LibrarySource that takes every file under a directory, recursively,
+ * whose path contains a given string. Each image is named by its path
+ * relative to the directory, with "/" between its parts, so that images of
+ * the same name in different category directories are kept apart.
+ */
+public class DirectoryLibrarySource implements LibrarySource {
+
+	private File directory;
+	private String pathFilter;
+
+	/**
+	 * @param directory
+	 * 				The directory searched for library images
+	 * @param pathFilter
+	 * 				The string a file's path must contain, or null to take every file
+	 * @throws NullPointerException
+	 * 				If the directory is null
+	 */
+	public DirectoryLibrarySource(File directory, String pathFilter) {
+		if(directory==null) {
+			throw new NullPointerException("Directory cannot be null");
+		}
+		this.directory = directory;
+		this.pathFilter = pathFilter;
+	}
+
+	@Override
+	public Map<String, File> findImages() {
+		HallucinationLog.i("Path", this.directory.getAbsolutePath());
+		return findImages(this.directory, "", new HashMap<String, File>());
+	}
+
+	private Map<String, File> findImages(File current, String prefix, Map<String, File> result) {
+		File[] images = current.listFiles();
+		if(images == null) {
+			return result;
+		}
+		for(int i = 0; i < images.length; i++) {
+			File image = images[i];
+			if(image.isDirectory()) {
+				findImages(image, prefix + image.getName() + "/", result);
+			} else if(this.pathFilter == null || image.getAbsolutePath().contains(this.pathFilter)) {
+				result.put(prefix + image.getName(), image);
+			}
+		}
+		return result;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String getPathFilter() {
+		return pathFilter;
+	}
+}
@@ -0,0 +1,93 @@
+package com.main.hallucinationthesis;
+
+/**
+ * The distance kernels between feature vectors packed by
+ * ParentStructure.packFeatures.
+ *
+ * Packing has already multiplied every value by its weighting and level
+ * scale, so the weighted distance between two structures is a plain L^2
+ * distance here, with nothing boxed and no powers left to compute per
+ * comparison.
+ *
+ * Library vectors are compared a contiguous run at a time. The run is taken
+ * four vectors at once, each summed in a variable of its own, so that the
+ * four sums are independent and the processor can overlap their additions
+ * rather than waiting on one long chain of them. Every sum still adds the
+ * dimensions up in order, so a vector's distance is the same to the bit
+ * whichever kernel it was found with.
+ */
+public final class FeatureDistance {
+
+	private static final int DIMENSIONS = ParentStructure.FEATURE_LENGTH;
+
+	private FeatureDistance() {
+	}
+
+	/**
+	 * The squared distance between two packed vectors.
+	 *
+	 * @param a
+	 * 				The first vector(s)
+	 * @param aOffset
+	 * 				The index of the first value of the first vector
+	 * @param b
+	 * 				The second vector(s)
+	 * @param bOffset
+	 * 				The index of the first value of the second vector
+	 */
+	public static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset) {
+		float sum = 0;
+		for(int d=0; d<DIMENSIONS; d++) {
+			float difference = a[aOffset+d]-b[bOffset+d];
+			sum += difference*difference;
+		}
+		return sum;
+	}
+
+	/**
+	 * The squared distances between a packed vector and a run of packed
+	 * vectors stored one after another.
+	 *
+	 * @param query
+	 * 				The packed vector(s)
+	 * @param offset
+	 * 				The index of the first value of the query vector
+	 * @param vectors
+	 * 				The array holding the run
+	 * @param start
+	 * 				The index of the first value of the run's first vector
+	 * @param count
+	 * 				The number of vectors in the run
+	 * @param distances
+	 * 				Filled with the squared distance to each vector of the run in order; must hold count values
+	 */
+	public static void squaredDistances(float[] query, int offset, float[] vectors, int start, int count,
+			float[] distances) {
+		int j = 0;
+		for(; j+4 <= count; j+=4) {
+			float sum0 = 0;
+			float sum1 = 0;
+			float sum2 = 0;
+			float sum3 = 0;
+			int vector = start+j*DIMENSIONS;
+			for(int d=0; d<DIMENSIONS; d++) {
+				float value = query[offset+d];
+				float difference0 = value-vectors[vector+d];
+				float difference1 = value-vectors[vector+DIMENSIONS+d];
+				float difference2 = value-vectors[vector+2*DIMENSIONS+d];
+				float difference3 = value-vectors[vector+3*DIMENSIONS+d];
+				sum0 += difference0*difference0;
+				sum1 += difference1*difference1;
+				sum2 += difference2*difference2;
+				sum3 += difference3*difference3;
+			}
+			distances[j] = sum0;
+			distances[j+1] = sum1;
+			distances[j+2] = sum2;
+			distances[j+3] = sum3;
+		}
+		for(; j<count; j++) {
+			distances[j] = squaredDistance(query, offset, vectors, start+j*DIMENSIONS);
+		}
+	}
+}
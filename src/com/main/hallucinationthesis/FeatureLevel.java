@@ -0,0 +1,87 @@
+package com.main.hallucinationthesis;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * The laplacian and four derivative values of one pyramid height, copied out
+ * of their Mats in one bulk read each so that parent structures can be filled
+ * in a tight loop without a native call, or any garbage, per pixel.
+ *
+ * The derivatives are single channel and share the size of the height's
+ * gaussian level, while the laplacian keeps its own size and channels.
+ */
+final class FeatureLevel {
+
+	private final int width;
+	private final int height;
+
+	private final float[] laplacian;
+	private final int laplacianWidth;
+	private final int laplacianChannels;
+
+	private final float[] h1;
+	private final float[] h2;
+	private final float[] v1;
+	private final float[] v2;
+
+	private FeatureLevel(Mat laplacian, Mat h1, Mat h2, Mat v1, Mat v2, MatPool pool) {
+		this.width = h1.cols();
+		this.height = h1.rows();
+		this.laplacian = values(laplacian, pool);
+		this.laplacianWidth = laplacian.cols();
+		this.laplacianChannels = laplacian.channels();
+		this.h1 = values(h1, pool);
+		this.h2 = values(h2, pool);
+		this.v1 = values(v1, pool);
+		this.v2 = values(v2, pool);
+	}
+
+	/**
+	 * @param laplacian
+	 * 				The laplacian level, of which the first three channels are used
+	 * @param h1
+	 * 				The first horizontal derivative, which sets the size of the level
+	 * @param h2
+	 * 				The second horizontal derivative
+	 * @param v1
+	 * 				The first vertical derivative
+	 * @param v2
+	 * 				The second vertical derivative
+	 * @param pool
+	 * 				Lends the scratch Mats the values are converted in
+	 */
+	static FeatureLevel read(Mat laplacian, Mat h1, Mat h2, Mat v1, Mat v2, MatPool pool) {
+		return new FeatureLevel(laplacian, h1, h2, v1, v2, pool);
+	}
+
+	// Every channel of every pixel, row by row, whatever the depth of the Mat
+	private static float[] values(Mat mat, MatPool pool) {
+		Mat converted = pool.borrow(mat.size(), CvType.makeType(CvType.CV_32F, mat.channels()));
+		mat.convertTo(converted, CvType.CV_32F);
+		float[] values = new float[(int)converted.total()*converted.channels()];
+		converted.get(0, 0, values);
+		pool.giveBack(converted);
+		return values;
+	}
+
+	/**
+	 * Sets one level of a table row from the pixel (x, y) of this level.
+	 *
+	 * @param parent
+	 * 				Whether to fill the parent level of the row rather than its own
+	 */
+	void write(int x, int y, ParentStructureTable table, int row, boolean parent) {
+		int pixel = y*this.width + x;
+		table.setLevelValues(row, parent, this.laplacian, (y*this.laplacianWidth + x)*this.laplacianChannels,
+				this.h1[pixel], this.h2[pixel], this.v1[pixel], this.v2[pixel]);
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+}
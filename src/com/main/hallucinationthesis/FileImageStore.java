@@ -0,0 +1,191 @@
+package com.main.hallucinationthesis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * An ImageStore that writes files into one directory, as PNGs at a given
+ * compression level, as raw pixel dumps, or not at all.
+ *
+ * A raw dump is the rows, columns and OpenCV type of the image as big-endian
+ * ints followed by its 8 bit pixels row by row, in the channel order they
+ * were given in. It costs no encoding, at the price of far larger files.
+ *
+ * Images overwrite any earlier file of the same name unless overwriting is
+ * turned off, in which case each takes the first free name with a "-n" suffix.
+ * Thread safe.
+ */
+public class FileImageStore implements ImageStore {
+
+	public enum Format { PNG, RAW, NONE }
+
+	// The default of imwrite, which favours size over speed
+	private static final int DEFAULT_PNG_COMPRESSION = 3;
+
+	private File directory;
+
+	private volatile Format format = Format.PNG;
+	private volatile int pngCompression = DEFAULT_PNG_COMPRESSION;
+	private volatile boolean overwriting = true;
+
+	/**
+	 * @param directory
+	 * 				The directory the images are written to
+	 * @throws NullPointerException
+	 * 				If the directory is null
+	 */
+	public FileImageStore(File directory) {
+		if(directory==null) {
+			throw new NullPointerException("Directory cannot be null");
+		}
+		this.directory = directory;
+	}
+
+	@Override
+	public Mat read(File file) {
+		return Highgui.imread(file.getAbsolutePath());
+	}
+
+	@Override
+	public void write(String name, Mat image) {
+		Format currentFormat = this.format;
+		if(currentFormat == Format.NONE) {
+			return;
+		}
+		File file = this.fileFor(name, currentFormat == Format.PNG ? ".png" : ".raw");
+		if(file == null) {
+			return;
+		}
+		HallucinationLog.i("saveImage", file.getName());
+		if(currentFormat == Format.PNG) {
+			writePng(file, image);
+		} else {
+			writeRaw(file, image);
+		}
+	}
+
+	private void writePng(File file, Mat image) {
+		MatOfInt parameters = new MatOfInt(Highgui.CV_IMWRITE_PNG_COMPRESSION, this.pngCompression);
+		if(image.channels() == 4) {
+			// Camera frames are RGBA, while imwrite expects BGR
+			Mat intermediateMat = new Mat();
+			Imgproc.cvtColor(image, intermediateMat, Imgproc.COLOR_RGBA2BGR, 3);
+			Highgui.imwrite(file.getAbsolutePath(), intermediateMat, parameters);
+			intermediateMat.release();
+		} else {
+			Highgui.imwrite(file.getAbsolutePath(), image, parameters);
+		}
+		parameters.release();
+	}
+
+	private void writeRaw(File file, Mat image) {
+		// Saturate anything deeper than 8 bits, as imwrite would
+		Mat bytes = image;
+		if(image.depth() != CvType.CV_8U || !image.isContinuous()) {
+			bytes = new Mat();
+			image.convertTo(bytes, CvType.CV_8U);
+		}
+		byte[] pixels = new byte[(int)(bytes.total()*bytes.channels())];
+		bytes.get(0, 0, pixels);
+		int type = bytes.type();
+		if(bytes != image) {
+			bytes.release();
+		}
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(image.rows());
+			out.writeInt(image.cols());
+			out.writeInt(type);
+			out.write(pixels);
+		} catch (IOException e) {
+			HallucinationLog.i("saveImage", "Could not write " + file + ": " + e.getMessage());
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					HallucinationLog.i("saveImage", "Could not close " + file + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	// The file to write the image to, claiming a free name when not overwriting
+	private File fileFor(String name, String extension) {
+		File file = new File(this.directory, name + extension);
+		if(this.overwriting) {
+			return file;
+		}
+		try {
+			// Creating the file claims the name, so concurrent writers never share one
+			for(int n=1; !file.createNewFile(); n++) {
+				file = new File(this.directory, name + "-" + n + extension);
+			}
+			return file;
+		} catch (IOException e) {
+			HallucinationLog.i("saveImage", "Could not create " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param format
+	 * 				How images are written from now on, NONE to drop them
+	 * @throws NullPointerException
+	 * 				If the format is null
+	 */
+	public void setFormat(Format format) {
+		if(format==null) {
+			throw new NullPointerException("Format cannot be null");
+		}
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @param level
+	 * 				The PNG compression level, from 0 for the fastest to 9 for the smallest
+	 * @throws IllegalArgumentException
+	 * 				If the level is not between 0 and 9
+	 */
+	public void setPngCompression(int level) {
+		if(level<0||level>9) {
+			throw new IllegalArgumentException("Compression level must be between 0 and 9");
+		}
+		this.pngCompression = level;
+	}
+
+	public int getPngCompression() {
+		return pngCompression;
+	}
+
+	/**
+	 * @param overwriting
+	 * 				Whether an image replaces an earlier file of the same name, rather than taking a new name
+	 */
+	public void setOverwriting(boolean overwriting) {
+		this.overwriting = overwriting;
+	}
+
+	public boolean isOverwriting() {
+		return overwriting;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
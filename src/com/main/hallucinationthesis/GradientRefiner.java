@@ -0,0 +1,391 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The last step of Baker and Kanade's hallucination, which pulls the pixels
+ * copied in from the library towards the two constraints they should meet:
+ * each block of scale by scale pixels must average out to the low-res pixel it
+ * was magnified from, and the gradients should stay those of the patches.
+ *
+ * The refined image minimises, over every channel,
+ *
+ *   sum over pixels of (mean of its block - low-res pixel)^2
+ *     + gradientWeight * sum of (gradient of the image - gradient of the patches)^2
+ *
+ * by conjugate gradients on the normal equations, starting from the patches.
+ * Each iteration makes three passes over primitive float buffers, each split
+ * into bands of whole blocks run in parallel on the given executor. The solve
+ * stops after a fixed number of iterations, or sooner once the residual has
+ * fallen by the tolerance, so its cost is bounded whatever the image.
+ *
+ * A refiner counts the refinements run and the iterations they took, which
+ * each Refinement adds in when merged, as SearchPolicy does for its searches.
+ */
+public class GradientRefiner {
+
+	private static final int CHANNELS = 3;
+
+	// The passes of one iteration
+	private static final int RESIDUAL = 0;
+	private static final int PRODUCT = 1;
+	private static final int STEP = 2;
+	private static final int DIRECTION = 3;
+
+	private final int iterations;
+	private final double tolerance;
+	private final float gradientWeight;
+
+	// The counts merged from every refinement since they were last reset
+	private long refinements;
+	private long iterationsRun;
+	private long converged;
+	private long nanos;
+
+	/**
+	 * The buffers of the refinements run by one thread, reused from one image
+	 * to the next and only ever grown. Not thread safe.
+	 */
+	public final class Refinement {
+		private float[] image;
+		private float[] residual;
+		private float[] direction;
+		private float[] product;
+		private float[] lowRes;
+		private int width;
+		private int height;
+		private int scale;
+
+		private long refinements;
+		private long iterationsRun;
+		private long converged;
+		private long nanos;
+
+		private Refinement() {
+			this.image = new float[0];
+			this.lowRes = new float[0];
+		}
+
+		/**
+		 * Refines a hallucinated image in place.
+		 *
+		 * @param pixels
+		 * 				The hallucinated image as a continuous 3 channel buffer
+		 * @param lowResPixels
+		 * 				The low-res image it was magnified from, likewise
+		 * @param width
+		 * 				The width of the hallucinated image, a multiple of the scale
+		 * @param height
+		 * 				The height of the hallucinated image, a multiple of the scale
+		 * @param scale
+		 * 				The magnification factor
+		 * @param executor
+		 * 				Runs the bands, or null to run them all on the calling thread
+		 * @param parallelism
+		 * 				The number of threads of the executor
+		 * @return The number of iterations run
+		 * @throws CancellationException
+		 * 				If the thread was interrupted before the refinement finished
+		 * @throws IllegalArgumentException
+		 * 				If the image is not a whole number of blocks
+		 */
+		public int refine(byte[] pixels, byte[] lowResPixels, int width, int height, int scale,
+				ExecutorService executor, int parallelism) {
+			if(scale < 1 || width%scale != 0 || height%scale != 0) {
+				throw new IllegalArgumentException("Image must be a whole number of blocks");
+			}
+			long start = System.nanoTime();
+			int values = width*height*CHANNELS;
+			if(this.image.length < values) {
+				this.image = new float[values];
+				this.residual = new float[values];
+				this.direction = new float[values];
+				this.product = new float[values];
+			}
+			int lowValues = values/(scale*scale);
+			if(this.lowRes.length < lowValues) {
+				this.lowRes = new float[lowValues];
+			}
+			for(int i=0; i<values; i++) {
+				this.image[i] = pixels[i] & 0xff;
+			}
+			for(int i=0; i<lowValues; i++) {
+				this.lowRes[i] = lowResPixels[i] & 0xff;
+			}
+			this.width = width;
+			this.height = height;
+			this.scale = scale;
+
+			// Starting from the patches, the gradient term has no residual at all
+			int blockRows = height/scale;
+			int bands = executor == null ? 1 : Math.min(blockRows, 2*parallelism);
+			double[] sums = new double[bands];
+			double residualSquared = pass(RESIDUAL, 0, sums, executor);
+			double limit = tolerance*tolerance*residualSquared;
+			int run = 0;
+			boolean done = residualSquared == 0;
+			while(!done && run < iterations) {
+				if(Thread.currentThread().isInterrupted()) {
+					throw new CancellationException("Refinement interrupted");
+				}
+				double curvature = pass(PRODUCT, 0, sums, executor);
+				if(curvature <= 0) {
+					break;
+				}
+				double next = pass(STEP, (float)(residualSquared/curvature), sums, executor);
+				run++;
+				if(next <= limit) {
+					done = true;
+				} else {
+					pass(DIRECTION, (float)(next/residualSquared), sums, executor);
+				}
+				residualSquared = next;
+			}
+
+			for(int i=0; i<values; i++) {
+				pixels[i] = (byte)Math.max(0, Math.min(255, Math.round(this.image[i])));
+			}
+			this.refinements++;
+			this.iterationsRun += run;
+			if(done) {
+				this.converged++;
+			}
+			this.nanos += System.nanoTime()-start;
+			return run;
+		}
+
+		// Runs one pass over every band, giving the sum of the bands' partial sums
+		private double pass(final int pass, final float coefficient, final double[] sums, ExecutorService executor) {
+			final int bands = sums.length;
+			final int blockRows = this.height/this.scale;
+			if(bands == 1) {
+				sums[0] = band(pass, coefficient, 0, blockRows);
+				return sums[0];
+			}
+			List<Future<Void>> results = new ArrayList<Future<Void>>(bands);
+			for(int b=0; b<bands; b++) {
+				final int band = b;
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						sums[band] = band(pass, coefficient, band*blockRows/bands, (band+1)*blockRows/bands);
+						return null;
+					}
+				}));
+			}
+			try {
+				for(Future<Void> result : results) {
+					result.get();
+				}
+			} catch (InterruptedException e) {
+				for(Future<Void> result : results) {
+					result.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Refinement interrupted");
+			} catch (ExecutionException e) {
+				for(Future<Void> result : results) {
+					result.cancel(true);
+				}
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+			double sum = 0;
+			for(int b=0; b<bands; b++) {
+				sum += sums[b];
+			}
+			return sum;
+		}
+
+		// One pass over the block rows from start to end, giving its partial sum
+		private double band(int pass, float coefficient, int start, int end) {
+			int from = start*this.scale*this.width*CHANNELS;
+			int to = end*this.scale*this.width*CHANNELS;
+			double sum = 0;
+			switch(pass) {
+			case RESIDUAL:
+				// The residual of the starting image is the shortfall of each block's mean
+				blockMeans(this.image, this.residual, start, end);
+				for(int i=from; i<to; i++) {
+					this.residual[i] = this.lowRes[lowResIndex(i)] - this.residual[i];
+					this.direction[i] = this.residual[i];
+					sum += this.residual[i]*this.residual[i];
+				}
+				break;
+			case PRODUCT:
+				multiply(this.direction, this.product, start, end);
+				for(int i=from; i<to; i++) {
+					sum += this.direction[i]*this.product[i];
+				}
+				break;
+			case STEP:
+				for(int i=from; i<to; i++) {
+					this.image[i] += coefficient*this.direction[i];
+					this.residual[i] -= coefficient*this.product[i];
+					sum += this.residual[i]*this.residual[i];
+				}
+				break;
+			case DIRECTION:
+				for(int i=from; i<to; i++) {
+					this.direction[i] = this.residual[i] + coefficient*this.direction[i];
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown pass " + pass);
+			}
+			return sum;
+		}
+
+		// The low-res value under a value of the image
+		private int lowResIndex(int i) {
+			int pixel = i/CHANNELS;
+			int x = pixel%this.width;
+			int y = pixel/this.width;
+			return ((y/this.scale)*(this.width/this.scale) + x/this.scale)*CHANNELS + i%CHANNELS;
+		}
+
+		// Sets every value of the block rows to the mean of its block
+		private void blockMeans(float[] source, float[] destination, int start, int end) {
+			int blocks = this.width/this.scale;
+			float area = this.scale*this.scale;
+			for(int by=start; by<end; by++) {
+				for(int bx=0; bx<blocks; bx++) {
+					for(int c=0; c<CHANNELS; c++) {
+						float sum = 0;
+						for(int y=by*this.scale; y<(by+1)*this.scale; y++) {
+							int position = (y*this.width + bx*this.scale)*CHANNELS + c;
+							for(int x=0; x<this.scale; x++) {
+								sum += source[position + x*CHANNELS];
+							}
+						}
+						float mean = sum/area;
+						for(int y=by*this.scale; y<(by+1)*this.scale; y++) {
+							int position = (y*this.width + bx*this.scale)*CHANNELS + c;
+							for(int x=0; x<this.scale; x++) {
+								destination[position + x*CHANNELS] = mean;
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// The normal equations applied to the block rows: the block means, plus the weighted
+		// Laplacian with the image's edges left free
+		private void multiply(float[] source, float[] destination, int start, int end) {
+			blockMeans(source, destination, start, end);
+			int stride = this.width*CHANNELS;
+			for(int y=start*this.scale; y<end*this.scale; y++) {
+				for(int x=0; x<this.width; x++) {
+					int position = y*stride + x*CHANNELS;
+					for(int c=0; c<CHANNELS; c++) {
+						int i = position+c;
+						float value = source[i];
+						float laplacian = 0;
+						if(x > 0) {
+							laplacian += value - source[i-CHANNELS];
+						}
+						if(x < this.width-1) {
+							laplacian += value - source[i+CHANNELS];
+						}
+						if(y > 0) {
+							laplacian += value - source[i-stride];
+						}
+						if(y < this.height-1) {
+							laplacian += value - source[i+stride];
+						}
+						destination[i] += gradientWeight*laplacian;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param iterations
+	 * 				The most iterations each refinement may run
+	 * @param tolerance
+	 * 				The fraction of its starting size the residual must fall to for a refinement to stop early
+	 * @param gradientWeight
+	 * 				How strongly the patches' gradients are kept against the low-res means
+	 * @throws IllegalArgumentException
+	 * 				If the iterations are less than 1, the tolerance is negative or the weight is not positive
+	 */
+	public GradientRefiner(int iterations, double tolerance, double gradientWeight) {
+		if(iterations<1||tolerance<0||!(gradientWeight>0)) {
+			throw new IllegalArgumentException("At least one iteration, a non-negative tolerance and a positive weight are required");
+		}
+		this.iterations = iterations;
+		this.tolerance = tolerance;
+		this.gradientWeight = (float)gradientWeight;
+	}
+
+	public Refinement newRefinement() {
+		return new Refinement();
+	}
+
+	/**
+	 * Adds the counts of a thread's refinements into the refiner's.
+	 */
+	public synchronized void merge(Refinement refinement) {
+		this.refinements += refinement.refinements;
+		this.iterationsRun += refinement.iterationsRun;
+		this.converged += refinement.converged;
+		this.nanos += refinement.nanos;
+	}
+
+	public synchronized void resetCounts() {
+		this.refinements = 0;
+		this.iterationsRun = 0;
+		this.converged = 0;
+		this.nanos = 0;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public double getGradientWeight() {
+		return gradientWeight;
+	}
+
+	public synchronized long getRefinements() {
+		return refinements;
+	}
+
+	public synchronized long getIterationsRun() {
+		return iterationsRun;
+	}
+
+	/**
+	 * @return The number of refinements that reached the tolerance within their iterations
+	 */
+	public synchronized long getConverged() {
+		return converged;
+	}
+
+	/**
+	 * @return The total time spent refining, in nanoseconds
+	 */
+	public synchronized long getNanos() {
+		return nanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return iterations + " iterations to " + tolerance + ": " + refinements + " refinements, "
+				+ iterationsRun + " iterations, " + converged + " converged, " + nanos/1000000 + "ms";
+	}
+}
@@ -0,0 +1,155 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * Hallucinates every image in a directory on the desktop, without a camera or Android.
+ *
+ * Usage: HallucinationCli library-dir input-dir output-dir [scale] [threads] [refine-iterations]
+ *
+ * Every file under the library directory is taken as a library image, and the
+ * deconstructed library is cached in the output directory for the next run. Each
+ * input image is magnified by the scale, a power of 2 defaulting to 2, whole on its
+ * own thread, and the result is written to the output directory under the input's
+ * name, with the intermediate images of every hallucination kept in a "steps"
+ * directory beneath it. The steps are written in the
+ * background as uncompressed PNGs, so that encoding them does not hold the threads up.
+ * With refine-iterations above 0, each result is refined by a GradientRefiner
+ * running at most that many iterations. The latency of every stage is timed
+ * and logged with the memory and match figures once all the images are done.
+ */
+public class HallucinationCli {
+
+	private static final String TAG = "HallucinationCli";
+
+	// The most bytes of intermediate images waiting to be written before the threads wait for the disk
+	private static final long STEPS_QUEUE_BYTES = 256L << 20;
+
+	// The residual fraction a refinement stops early at, and how strongly it keeps the patches' gradients
+	private static final double REFINE_TOLERANCE = 1e-3;
+	private static final double REFINE_GRADIENT_WEIGHT = 1;
+
+	private HallucinationCli() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3 || args.length > 6) {
+			System.err.println("Usage: HallucinationCli library-dir input-dir output-dir [scale] [threads] [refine-iterations]");
+			System.exit(2);
+		}
+		File libraryDirectory = new File(args[0]);
+		File inputDirectory = new File(args[1]);
+		File outputDirectory = new File(args[2]);
+		int scale = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		int refineIterations = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+		File[] inputs = inputDirectory.listFiles();
+		if(inputs == null) {
+			System.err.println("Not a directory: " + inputDirectory);
+			System.exit(2);
+		}
+		Arrays.sort(inputs);
+		File steps = new File(outputDirectory, "steps");
+		steps.mkdirs();
+
+		loadOpenCv();
+		FileImageStore stepImages = new FileImageStore(steps);
+		stepImages.setPngCompression(0);
+		AsyncImageStore stepWriter = new AsyncImageStore(stepImages, STEPS_QUEUE_BYTES);
+		HallucinationProcessor processor = new HallucinationProcessor(outputDirectory,
+				new DirectoryLibrarySource(libraryDirectory, null), stepWriter);
+		ImageStore results = new FileImageStore(outputDirectory);
+		int failed;
+		try {
+			processor.awaitLibrary();
+			HallucinationLog.i(TAG, "Library ready: " + processor.getLibraryImagesBuilt() + " images");
+
+			// The images are spread across the threads, so each is matched on its own thread alone
+			processor.setMatchingParallelism(1);
+			processor.setMetrics(new HallucinationMetrics());
+			if(refineIterations > 0) {
+				processor.setRefiner(new GradientRefiner(refineIterations, REFINE_TOLERANCE, REFINE_GRADIENT_WEIGHT));
+			}
+			failed = run(processor, results, inputs, scale, threads);
+			HallucinationLog.i(TAG, "Hallucinated " + (inputs.length - failed) + " of " + inputs.length + " images");
+			HallucinationLog.i(TAG, "Search " + processor.getSearchPolicy());
+			if(processor.getRefiner() != null) {
+				HallucinationLog.i(TAG, "Refinement " + processor.getRefiner());
+			}
+			for(String line : processor.snapshotMetrics().toString().split("\n")) {
+				HallucinationLog.i(TAG, line);
+			}
+			processor.getMatPool().checkLeaks();
+		} finally {
+			processor.shutdown();
+			// Exiting does not wait for the writer thread, so let it finish first
+			stepWriter.close();
+		}
+		if(failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static int run(final HallucinationProcessor processor, final ImageStore results, File[] inputs,
+			final int scale, int threads) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> jobs = new ArrayList<Future<?>>();
+		for(int i=0; i<inputs.length; i++) {
+			final File input = inputs[i];
+			final int noTimes = i;
+			jobs.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					// Read as BGR, the same channel order the library images are deconstructed in
+					Mat image = processor.getImageStore().read(input);
+					if(image.empty()) {
+						throw new IllegalArgumentException("Could not read " + input);
+					}
+					Mat result = processor.hallucinateRegion(image, scale, noTimes);
+					results.write(baseName(input), result);
+					result.release();
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int failed = 0;
+		for(int i=0; i<jobs.size(); i++) {
+			try {
+				jobs.get(i).get();
+			} catch (ExecutionException e) {
+				HallucinationLog.i(TAG, "Could not hallucinate " + inputs[i] + ": " + e.getCause().getMessage());
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	private static String baseName(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	// Use an installed OpenCV if there is one, otherwise the natives bundled with the openpnp bindings
+	private static void loadOpenCv() throws Exception {
+		try {
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		} catch (UnsatisfiedLinkError e) {
+			Method loadLocally = Class.forName("nu.pattern.OpenCV").getMethod("loadLocally");
+			loadLocally.invoke(null);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.main.hallucinationthesis;
+
+/**
+ * The logger used by the processing classes, so that they do not depend on
+ * android.util.Log and can run headless.
+ *
+ * Messages go to a pluggable sink: the app installs one that forwards to the
+ * Android log, while desktop tools keep the console default or turn logging
+ * off altogether by setting a null sink.
+ */
+public final class HallucinationLog {
+
+	/**
+	 * Receives every message logged. Called from whichever thread logged it.
+	 */
+	public interface Sink {
+		void log(String tag, String message);
+	}
+
+	/**
+	 * Prints messages to standard error.
+	 */
+	public static final Sink CONSOLE = new Sink() {
+		@Override
+		public void log(String tag, String message) {
+			System.err.println(tag + ": " + message);
+		}
+	};
+
+	private static volatile Sink sink = CONSOLE;
+
+	private HallucinationLog() {
+	}
+
+	/**
+	 * @param newSink
+	 * 				Receives messages from now on, or null to drop them
+	 */
+	public static void setSink(Sink newSink) {
+		sink = newSink;
+	}
+
+	public static Sink getSink() {
+		return sink;
+	}
+
+	public static void i(String tag, String message) {
+		Sink current = sink;
+		if(current != null) {
+			current.log(tag, message);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.main.hallucinationthesis;
+
+import java.util.Locale;
+
+/**
+ * Where a processor's time goes, stage by stage, with the memory and match
+ * figures to go alongside it.
+ *
+ * The processor records the latency of each stage of every hallucination into
+ * a LatencyHistogram of its own, but only while metrics are set on it; with
+ * none set, every stage costs one null check. Nothing is pushed anywhere:
+ * a Snapshot is pulled whenever it is wanted, as for an on-screen overlay,
+ * and holds copies that later hallucinations leave alone.
+ */
+public class HallucinationMetrics {
+
+	/**
+	 * The stages of a hallucination, in the order they run.
+	 */
+	public enum Stage {
+		// Magnifying the low-res image in lanczos stages
+		LANCZOS,
+		// Building the Gaussian and Laplacian levels structures are taken from
+		PYRAMID,
+		// Taking the derivatives and filling the parent structures
+		FEATURES,
+		// Searching the library for every structure
+		MATCHING,
+		// Blending the matched library patches
+		RECONSTRUCTION,
+		// Refining against the low-res image and the patches' gradients
+		REFINEMENT,
+		// Handing images to the image store
+		SAVE,
+		// A whole hallucination, from low-res image to result
+		TOTAL
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private final LatencyHistogram[] histograms;
+
+	public HallucinationMetrics() {
+		this.histograms = new LatencyHistogram[STAGES.length];
+		for(int s=0; s<STAGES.length; s++) {
+			this.histograms[s] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @param stage
+	 * 				The stage that ran
+	 * @param nanos
+	 * 				How long it took
+	 */
+	public void record(Stage stage, long nanos) {
+		this.histograms[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Records a stage that started at the given System.nanoTime and has just finished.
+	 */
+	public void recordSince(Stage stage, long start) {
+		record(stage, System.nanoTime()-start);
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return this.histograms[stage.ordinal()];
+	}
+
+	public void reset() {
+		for(LatencyHistogram histogram : this.histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * The metrics of a processor at one moment.
+	 */
+	public static final class Snapshot {
+		private final LatencyHistogram[] histograms;
+		private final long matBytesAllocated;
+		private final long matBytesFree;
+		private final int matsBorrowed;
+		private final long searches;
+		private final long candidates;
+		private final long matched;
+		private final int libraryImages;
+		private final int libraryStructures;
+		private final long sourceBytes;
+
+		Snapshot(HallucinationMetrics metrics, MatPool pool, SearchPolicy policy, int libraryImages,
+				int libraryStructures, long sourceBytes) {
+			this.histograms = new LatencyHistogram[STAGES.length];
+			for(int s=0; s<STAGES.length; s++) {
+				this.histograms[s] = metrics.histograms[s].copy();
+			}
+			this.matBytesAllocated = pool.getAllocatedBytes();
+			this.matBytesFree = pool.getFreeBytes();
+			this.matsBorrowed = pool.getBorrowed();
+			synchronized(policy) {
+				this.searches = policy.getSearches();
+				this.candidates = policy.getCandidates();
+				this.matched = policy.getMatched();
+			}
+			this.libraryImages = libraryImages;
+			this.libraryStructures = libraryStructures;
+			this.sourceBytes = sourceBytes;
+		}
+
+		public LatencyHistogram getHistogram(Stage stage) {
+			return this.histograms[stage.ordinal()];
+		}
+
+		/**
+		 * @return The bytes of native Mats the processor's pool has allocated since it was made
+		 */
+		public long getMatBytesAllocated() {
+			return matBytesAllocated;
+		}
+
+		/**
+		 * @return The bytes of native Mats the pool is holding for reuse
+		 */
+		public long getMatBytesFree() {
+			return matBytesFree;
+		}
+
+		public int getMatsBorrowed() {
+			return matsBorrowed;
+		}
+
+		/**
+		 * @return The structures searched for, as counted by the search policy since its counts were last reset
+		 */
+		public long getSearches() {
+			return searches;
+		}
+
+		public double getCandidatesPerStructure() {
+			return searches == 0 ? 0 : (double)candidates/searches;
+		}
+
+		/**
+		 * @return The fraction of searches that found a match within the threshold
+		 */
+		public double getHitRate() {
+			return searches == 0 ? 0 : (double)matched/searches;
+		}
+
+		public int getLibraryImages() {
+			return libraryImages;
+		}
+
+		public int getLibraryStructures() {
+			return libraryStructures;
+		}
+
+		/**
+		 * @return The bytes of library pixels kept to reconstruct from
+		 */
+		public long getSourceBytes() {
+			return sourceBytes;
+		}
+
+		/**
+		 * A line per stage that has run, then the memory, match and library figures.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			for(int s=0; s<STAGES.length; s++) {
+				if(this.histograms[s].getCount() > 0) {
+					text.append(STAGES[s]).append(' ').append(this.histograms[s]).append('\n');
+				}
+			}
+			text.append(String.format(Locale.US, "Mats %.1fMB allocated, %.1fMB free, %d borrowed%n",
+					matBytesAllocated/1048576.0, matBytesFree/1048576.0, matsBorrowed));
+			text.append(String.format(Locale.US, "Matching %d searches, %.1f candidates each, %.1f%% hit%n",
+					searches, getCandidatesPerStructure(), 100*getHitRate()));
+			text.append(String.format(Locale.US, "Library %d images, %d structures, %.1fMB source",
+					libraryImages, libraryStructures, sourceBytes/1048576.0));
+			return text.toString();
+		}
+	}
+}
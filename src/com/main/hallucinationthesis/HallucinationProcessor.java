@@ -1,34 +1,34 @@
 package com.main.hallucinationthesis;
 
-import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
 import org.opencv.imgproc.*;
-import org.opencv.highgui.*;
-
-import android.content.Context;
-import android.os.Environment;
-import android.util.Log;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The main class to perform the processing required for "Hallucination"
  * of a low resolution image into a high resolution one.
  * 
- * Typically, the magnification factor is a power of 2.
+ * The magnification factor is a power of 2, reached in cascading 2x stages
+ * that each build on the pyramid of the stage before.
  * 
  * @author Jonathan Holland 2015
  * 
@@ -38,16 +38,107 @@ public class HallucinationProcessor {
 	private static final int CV_RGB2GRAY = 7;
 	private static final int CV_16S = 3;
 	
-	private static Context hContext;
+	// Marks a structure whose match has not been searched for yet; -1 is searched without a match
+	private static final int UNSEARCHED = -2;
 	
 	private boolean 	hProcessingEnabled;
 	private Point 		hTouch;
 	private boolean 	hOnTouch;
 	private int			hFrameSizeWidth;
 	private int 		hFrameSizeHeight;
+	private boolean		hFullFrame;
+	
+	// The square tiles a full frame is hallucinated in, and how far neighbouring tiles overlap, in frame pixels
+	private int			tileSize = 128;
+	private int			tileOverlap = 16;
+	
+	// Give the derivatives half as much weight as per bakerSimon2002
+	private static final double[] WEIGHTINGS = {1.0,0.5,0.5,0.25,0.25};
+	
+	// The pyramid heights parent structures are taken from unless the constructor is told otherwise
+	private static final int DEFAULT_LOWEST_LEVEL = 4;
+	private static final int DEFAULT_HIGHEST_LEVEL = 5;
+	
+	// The pyramid heights both the library and the input are deconstructed at, inclusive
+	private final int lowestLevel;
+	private final int highestLevel;
+	
+	// The name of the deconstructed library cache within the app's data directory
+	private static final String LIBRARY_CACHE_NAME = "library.cache";
+	
+	// How library images are matched, so the matcher can follow the library as it grows
+	private enum MatchingMode { SCORE, TREE, SHARDED, CUSTOM }
+	
+	private Map<String, ParentStructureTable> library;
+	private volatile ScoreIndex libraryIndex;
+	// The sorted indexes of images built since the library index was last merged, and their entry count
+	private List<ScoreIndex> pendingIndexes;
+	private int pendingEntries;
+	// Whether the pending indexes are being merged on a library thread
+	private boolean mergingIndexes;
+	// In tree and sharded matching, the matcher over the images folded together so far,
+	// and a small one for each image finished since with their entry count
+	private ParentStructureMatcher foldedMatcher;
+	private List<ParentStructureMatcher> pendingMatchers;
+	private int pendingMatcherEntries;
+	// Whether the folded matcher is being rebuilt on a library thread, and a count bumped
+	// whenever the matching mode changes or everything is folded, which a rebuild must not miss
+	private boolean rebuildingMatcher;
+	private int matcherGeneration;
+	private volatile ParentStructureMatcher matcher;
+	private volatile double matchThreshold;
+	private MatchingMode matchingMode;
+	private double scoreThreshold;
+	private double treeEpsilon;
+	private int treeMaxChecks;
+	private double shardBucketWidth;
+	private String[] shardCategories;
+	private ConcurrentHashMap<String, File> libraryFiles;
+	private Map<String, Size> libraryDimensions;
+	private SourcePixels sourcePixels;
+	private LibraryCache libraryCache;
+	private ImageStore imageStore;
+	
+	// The scratch Mats reused from one hallucination to the next
+	private static final long MAT_POOL_BYTES = 32L << 20;
+	private MatPool matPool;
+	
+	/**
+	 * Told of progress while the library is being deconstructed in the background,
+	 * on the library building threads.
+	 */
+	public interface LibraryListener {
+		void onLibraryProgress(int imagesBuilt, int imagesTotal);
+		void onLibraryReady();
+	}
+	
+	// The threads the library images are deconstructed on, one image per task
+	private ExecutorService libraryExecutor;
+	private LibraryListener libraryListener;
+	private int libraryImagesBuilt;
+	private int libraryImagesTotal;
+	
+	// Summarises match distances for threshold tuning, or null when tracing is off
+	private volatile ThresholdTrace thresholdTrace;
 	
-	private Map<String, List<ParentStructure>> library;
-	private Map<String, Mat> originalHrImages;
+	// Reuses the matches of the previous frame, or null to search every frame afresh
+	private volatile CoherenceCache coherenceCache;
+	
+	// How hard each structure is searched for, and how many candidates that took
+	private volatile SearchPolicy searchPolicy;
+	
+	// Holds each hallucination to the low-res image and its patches' gradients, or null to leave the patches as they are
+	private volatile GradientRefiner refiner;
+	
+	// Times every stage of every hallucination, or null to time nothing
+	private volatile HallucinationMetrics metrics;
+	
+	// Whether each hallucination's images are handed to the image store at all
+	private volatile boolean savingImages = true;
+	
+	// The threads the input structures are matched on, in tiles of consecutive rows
+	private ExecutorService matchingExecutor;
+	private int matchingParallelism;
 
 	
 	// Set flag to enable processing
@@ -90,8 +181,50 @@ public class HallucinationProcessor {
 		this.hFrameSizeHeight = hFrameSizeHeight;
 	}
 
-	public void setContext(Context context) {
-		hContext = context;
+	// Set flag to hallucinate the whole frame rather than the touched region
+	public void enableFullFrame() {
+		this.sethFullFrame(true);
+	}
+
+	public void disableFullFrame() {
+		this.sethFullFrame(false);
+	}
+
+	public boolean ishFullFrame() {
+		return hFullFrame;
+	}
+
+	public void sethFullFrame(boolean hFullFrame) {
+		this.hFullFrame = hFullFrame;
+	}
+	
+	/**
+	 * Sets the tiles a full frame is hallucinated in. Only one tile is worked on
+	 * at a time, so the memory used besides the result grows with the tile size
+	 * and not the frame size.
+	 * 
+	 * @param size
+	 * 				The width and height of each tile, in frame pixels
+	 * @param overlap
+	 * 				How far neighbouring tiles overlap, in frame pixels, for blending the seams
+	 * @throws IllegalArgumentException
+	 * 				If the size is less than 64, too small for the pyramid, or the overlap is
+	 * 				negative or not less than half the size
+	 */
+	public synchronized void setTileSize(int size, int overlap) {
+		if(size<64||overlap<0||2*overlap>=size) {
+			throw new IllegalArgumentException("Tiles must be at least 64 pixels and overlap by less than half");
+		}
+		this.tileSize = size;
+		this.tileOverlap = overlap;
+	}
+	
+	public synchronized int getTileSize() {
+		return tileSize;
+	}
+	
+	public synchronized int getTileOverlap() {
+		return tileOverlap;
 	}
 
 	public void touchEvent(int x, int y) {
@@ -104,390 +237,1447 @@ public class HallucinationProcessor {
 	 * ideally called on startup of the app.
 	 * 
 	 * @param path
-	 * 				The location path to the high-res image library
+	 * 				The app's data directory, where the deconstructed library is cached
+	 * @param librarySource
+	 * 				Finds the high-res library images
+	 * @param imageStore
+	 * 				Reads the library images and writes out each hallucination's images
+	 * @throws NullPointerException
+	 * 				If the path parameter is null or empty, or the source or store is null
+	 */
+	public HallucinationProcessor(File path, LibrarySource librarySource, ImageStore imageStore) {
+		this(path, librarySource, imageStore, DEFAULT_LOWEST_LEVEL, DEFAULT_HIGHEST_LEVEL);
+	}
+	
+	/**
+	 * The constructor for the processor, taking parent structures from a
+	 * chosen range of pyramid heights. Every pixel of each height becomes a
+	 * structure with the pixel above it as its parent, so higher heights give
+	 * fewer, coarser structures, and the tiles and touch region must be large
+	 * enough for the highest height to still have pixels.
+	 * 
+	 * @param path
+	 * 				The app's data directory, where the deconstructed library is cached
+	 * @param librarySource
+	 * 				Finds the high-res library images
+	 * @param imageStore
+	 * 				Reads the library images and writes out each hallucination's images
+	 * @param lowestLevel
+	 * 				The lowest pyramid height structures are taken from
+	 * @param highestLevel
+	 * 				The highest pyramid height structures are taken from
 	 * @throws NullPointerException
-	 * 				If the path parameter is null or empty
+	 * 				If the path parameter is null or empty, or the source or store is null
+	 * @throws IllegalArgumentException
+	 * 				If the lowest height is less than 1 or above the highest
 	 */
-	public HallucinationProcessor(File path) {
+	public HallucinationProcessor(File path, LibrarySource librarySource, ImageStore imageStore,
+			int lowestLevel, int highestLevel) {
 		
 		if(path==null||path.length()==0) {
 			throw new NullPointerException("Path cannot be null or empty");
 		}
-		this.originalHrImages = new HashMap<String, Mat>();
-		this.library = deconstructLibrary();	
+		if(librarySource==null) {
+			throw new NullPointerException("Library source cannot be null");
+		}
+		if(imageStore==null) {
+			throw new NullPointerException("Image store cannot be null");
+		}
+		if(lowestLevel<1||lowestLevel>highestLevel) {
+			throw new IllegalArgumentException("Levels must start from at least 1 and not run backwards");
+		}
+		this.lowestLevel = lowestLevel;
+		this.highestLevel = highestLevel;
+		this.imageStore = imageStore;
+		this.matPool = new MatPool(MAT_POOL_BYTES);
+		// Sources built here are spilled beside the cache rather than held on the heap
+		this.sourcePixels = new SourcePixels(SourcePixels.levelFor(lowestLevel), path);
+		this.libraryDimensions = new ConcurrentHashMap<String, Size>();
+		this.library = new ConcurrentHashMap<String, ParentStructureTable>();
+		this.pendingIndexes = new ArrayList<ScoreIndex>();
+		this.pendingMatchers = new ArrayList<ParentStructureMatcher>();
+		this.libraryCache = new LibraryCache(new File(path, LIBRARY_CACHE_NAME));
+		
+		// Take all the images from the image library of text
+		this.libraryFiles = new ConcurrentHashMap<String, File>(librarySource.findImages());
+		this.libraryImagesTotal = this.libraryFiles.size();
+		
+		// Reuse the previous deconstruction if none of the library images have changed
+		LibraryCache.Contents cached = this.libraryCache.load(this.libraryFiles, WEIGHTINGS, lowestLevel, highestLevel);
+		if(cached != null) {
+			this.library.putAll(cached.getTables());
+			this.libraryDimensions.putAll(cached.getDimensions());
+			this.sourcePixels = cached.getSourcePixels();
+			this.libraryIndex = cached.getScoreIndex();
+			this.libraryImagesBuilt = this.libraryImagesTotal;
+		} else {
+			// Start with an empty library that fills in as each image is deconstructed
+			this.libraryIndex = new ScoreIndex(new HashMap<String, ParentStructureTable>());
+		}
+		
+		this.useScoreMatching(100);
+		this.searchPolicy = SearchPolicy.best();
+		this.setMatchingParallelism(Runtime.getRuntime().availableProcessors());
+		
+		if(cached == null) {
+			this.deconstructLibrary();
+		}
+	}
+	
+	/**
+	 * @param listener
+	 * 				Told of library progress from now on; told at once if the library is already complete
+	 */
+	public void setLibraryListener(LibraryListener listener) {
+		boolean ready;
+		synchronized(this) {
+			this.libraryListener = listener;
+			ready = this.isLibraryReady();
+		}
+		if(ready && listener != null) {
+			listener.onLibraryReady();
+		}
+	}
+	
+	public synchronized boolean isLibraryReady() {
+		return libraryImagesBuilt == libraryImagesTotal;
+	}
+	
+	/**
+	 * Blocks until every library image has been deconstructed, for callers
+	 * such as batch tools that want the whole library before matching.
+	 * 
+	 * @throws InterruptedException
+	 * 				If the thread was interrupted while waiting
+	 */
+	public synchronized void awaitLibrary() throws InterruptedException {
+		while(!this.isLibraryReady()) {
+			this.wait();
+		}
+	}
+	
+	public synchronized int getLibraryImagesBuilt() {
+		return libraryImagesBuilt;
+	}
+	
+	public synchronized int getLibraryImagesTotal() {
+		return libraryImagesTotal;
+	}
+	
+	/**
+	 * Stops any background library building and matching threads.
+	 */
+	public synchronized void shutdown() {
+		if(this.libraryExecutor != null) {
+			this.libraryExecutor.shutdownNow();
+			this.libraryExecutor = null;
+		}
+		if(this.matchingExecutor != null) {
+			this.matchingExecutor.shutdownNow();
+			this.matchingExecutor = null;
+			this.matchingParallelism = 1;
+		}
+		this.matPool.clear();
+		this.sourcePixels.closeSpill();
+	}
+	
+	/**
+	 * Sets how many threads the input structures are matched on.
+	 * 
+	 * @param parallelism
+	 * 				The number of matching threads, 1 to match on the calling thread alone
+	 * @throws IllegalArgumentException
+	 * 				If the parallelism is less than 1
+	 */
+	public synchronized void setMatchingParallelism(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		if(this.matchingExecutor != null) {
+			this.matchingExecutor.shutdown();
+			this.matchingExecutor = null;
+		}
+		this.matchingParallelism = parallelism;
+		if(parallelism > 1) {
+			this.matchingExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				private int count = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HallucinationMatching-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	public int getMatchingParallelism() {
+		return matchingParallelism;
+	}
+	
+	/**
+	 * @param trace
+	 * 				Collects the match distances of every hallucination, or null to turn tracing off
+	 */
+	public void setThresholdTrace(ThresholdTrace trace) {
+		this.thresholdTrace = trace;
+	}
+	
+	public ThresholdTrace getThresholdTrace() {
+		return thresholdTrace;
+	}
+	
+	/**
+	 * @param cache
+	 * 				Carries matches over between consecutive full frames, or null to turn reuse off
+	 */
+	public void setCoherenceCache(CoherenceCache cache) {
+		this.coherenceCache = cache;
+	}
+	
+	public CoherenceCache getCoherenceCache() {
+		return coherenceCache;
+	}
+	
+	/**
+	 * @param policy
+	 * 				How each input structure is searched for from the next hallucination on,
+	 * 				which also counts the candidates its searches compare
+	 * @throws NullPointerException
+	 * 				If the policy is null
+	 */
+	public void setSearchPolicy(SearchPolicy policy) {
+		if(policy==null) {
+			throw new NullPointerException("Policy cannot be null");
+		}
+		this.searchPolicy = policy;
+	}
+	
+	public SearchPolicy getSearchPolicy() {
+		return searchPolicy;
+	}
+	
+	/**
+	 * @param refiner
+	 * 				Refines every hallucination from the next one on, which also counts
+	 * 				the iterations and time that took, or null to turn refinement off
+	 */
+	public void setRefiner(GradientRefiner refiner) {
+		this.refiner = refiner;
+	}
+	
+	public GradientRefiner getRefiner() {
+		return refiner;
+	}
+	
+	/**
+	 * @param metrics
+	 * 				Records how long each stage of every hallucination takes from the next one on,
+	 * 				or null to turn timing off
+	 */
+	public void setMetrics(HallucinationMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public HallucinationMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @param savingImages
+	 * 				Whether the images of each hallucination are written to the image store.
+	 * 				Turning it off skips them before any copy is made, as for live frames.
+	 */
+	public void setSavingImages(boolean savingImages) {
+		this.savingImages = savingImages;
+	}
+	
+	public boolean isSavingImages() {
+		return savingImages;
+	}
+	
+	/**
+	 * Pulls the stage timings together with the memory, match and library figures they go with.
+	 * 
+	 * @return The metrics as they are now, or null if metrics are off
+	 */
+	public HallucinationMetrics.Snapshot snapshotMetrics() {
+		HallucinationMetrics currentMetrics = this.metrics;
+		if(currentMetrics == null) {
+			return null;
+		}
+		int images;
+		int structures = 0;
+		synchronized(this) {
+			images = this.library.size();
+			for(ParentStructureTable table : this.library.values()) {
+				structures += table.size();
+			}
+		}
+		return new HallucinationMetrics.Snapshot(currentMetrics, this.matPool, this.searchPolicy, images, structures,
+				this.sourcePixels.getByteCount());
+	}
+	
+	public ImageStore getImageStore() {
+		return imageStore;
+	}
+	
+	public MatPool getMatPool() {
+		return matPool;
+	}
+	
+	public int getLowestLevel() {
+		return lowestLevel;
+	}
+	
+	public int getHighestLevel() {
+		return highestLevel;
+	}
+	
+	/**
+	 * Match input structures on their weighted score alone, taking the closest
+	 * library score within the threshold.
+	 * 
+	 * @param threshold
+	 * 				The maximum allowed difference in weighted score
+	 */
+	public synchronized void useScoreMatching(double threshold) {
+		this.matchingMode = MatchingMode.SCORE;
+		this.scoreThreshold = threshold;
+		this.matcherGeneration++;
+		this.applyLibraryMatcher();
+	}
+	
+	/**
+	 * Match input structures on their full feature vectors, taking the nearest
+	 * library structure under the weighted L^2 distance. While the library is
+	 * still being built, each image finished since the tree was last built is
+	 * searched by a small tree of its own until a rebuild in the background
+	 * takes it in, and the tree is rebuilt over the whole library once every
+	 * image is ready.
+	 * 
+	 * @param epsilon
+	 * 				The relative error allowed, 0 for an exact nearest neighbour
+	 * @param maxChecks
+	 * 				The maximum number of library structures compared per input structure, 0 for no limit
+	 */
+	public synchronized void useTreeMatching(double epsilon, int maxChecks) {
+		this.matchingMode = MatchingMode.TREE;
+		this.treeEpsilon = epsilon;
+		this.treeMaxChecks = maxChecks;
+		this.foldAllMatchers();
+		this.applyLibraryMatcher();
+	}
+	
+	private KdTreeMatcher buildTree() {
+		return buildTree(new HashMap<String, ParentStructureTable>(this.library));
+	}
+	
+	private KdTreeMatcher buildTree(Map<String, ParentStructureTable> structures) {
+		KdTreeMatcher tree = new KdTreeMatcher(structures, 16);
+		tree.setEpsilon(this.treeEpsilon);
+		tree.setMaxChecks(this.treeMaxChecks);
+		return tree;
+	}
+	
+	/**
+	 * Match input structures as tree matching does, but with the library split
+	 * into shards by pyramid height, category and Laplacian energy, each with a
+	 * tree of its own, so that each input structure only searches the shards of
+	 * its own height and of the categories asked for, nearest in energy first.
+	 * The category of a library image is the name of the directory holding it,
+	 * so a library laid out in fonts and faces directories can be searched for
+	 * either alone. The trees take the epsilon and check limit last given to
+	 * useTreeMatching, and images finished while the library is being built are
+	 * searched as they are in tree matching, with shards of their own.
+	 * 
+	 * @param bucketWidth
+	 * 				The range of packed Laplacian energy each shard covers, infinite for one bucket
+	 * @param categories
+	 * 				The categories searched, or none to search every one
+	 * @throws IllegalArgumentException
+	 * 				If the bucket width is not positive
+	 */
+	public synchronized void useShardedMatching(double bucketWidth, String... categories) {
+		if(!(bucketWidth > 0)) {
+			throw new IllegalArgumentException("Bucket width must be positive");
+		}
+		this.matchingMode = MatchingMode.SHARDED;
+		this.shardBucketWidth = bucketWidth;
+		this.shardCategories = categories.clone();
+		this.foldAllMatchers();
+		this.applyLibraryMatcher();
+	}
+	
+	private ShardedMatcher buildShards() {
+		return buildShards(new HashMap<String, ParentStructureTable>(this.library));
+	}
+	
+	private ShardedMatcher buildShards(Map<String, ParentStructureTable> structures) {
+		Map<String, String> categories = new HashMap<String, String>();
+		for(Map.Entry<String, File> image : this.libraryFiles.entrySet()) {
+			File directory = image.getValue().getParentFile();
+			if(directory != null) {
+				categories.put(image.getKey(), directory.getName());
+			}
+		}
+		ShardedMatcher shards = new ShardedMatcher(structures, categories,
+				this.shardBucketWidth, new ShardedMatcher.MatcherFactory() {
+			@Override
+			public ParentStructureMatcher build(Map<String, ParentStructureTable> shard) {
+				return buildTree(shard);
+			}
+		});
+		if(this.shardCategories.length > 0) {
+			shards = shards.restrictTo(Arrays.asList(this.shardCategories));
+		}
+		return shards;
+	}
+	
+	/**
+	 * @param matcher
+	 * 				The search over the library used by hallucinate
+	 * @param threshold
+	 * 				The maximum distance of an accepted match, in the matcher's own distance
+	 * @throws NullPointerException
+	 * 				If the matcher is null
+	 */
+	public synchronized void setMatcher(ParentStructureMatcher matcher, double threshold) {
+		if(matcher==null) {
+			throw new NullPointerException("Matcher cannot be null");
+		}
+		this.matchingMode = MatchingMode.CUSTOM;
+		this.matcherGeneration++;
+		this.applyMatcher(matcher, threshold);
+	}
+	
+	// Rebuilds the tree or shards over every image published so far
+	private void foldAllMatchers() {
+		this.foldedMatcher = this.matchingMode == MatchingMode.TREE ? this.buildTree() : this.buildShards();
+		this.pendingMatchers.clear();
+		this.pendingMatcherEntries = 0;
+		this.matcherGeneration++;
+	}
+	
+	// Points matching at every image published so far, folded together or not
+	private void applyLibraryMatcher() {
+		if(this.matchingMode == MatchingMode.SCORE) {
+			this.applyMatcher(union(this.libraryIndex, this.pendingIndexes), this.scoreThreshold);
+		} else if(this.matchingMode == MatchingMode.TREE || this.matchingMode == MatchingMode.SHARDED) {
+			this.applyMatcher(union(this.foldedMatcher, this.pendingMatchers), Double.POSITIVE_INFINITY);
+		}
+	}
+	
+	private static ParentStructureMatcher union(ParentStructureMatcher folded, List<? extends ParentStructureMatcher> pending) {
+		if(pending.isEmpty()) {
+			return folded;
+		}
+		List<ParentStructureMatcher> parts = new ArrayList<ParentStructureMatcher>(pending.size()+1);
+		parts.add(folded);
+		parts.addAll(pending);
+		return new UnionMatcher(parts);
+	}
+	
+	private void applyMatcher(ParentStructureMatcher matcher, double threshold) {
+		this.matcher = matcher;
+		this.matchThreshold = threshold;
+	}
+	
+	public ParentStructureMatcher getMatcher() {
+		return matcher;
 	}
 
 	/**
+	 * Hallucinates the touched region of the frame, or the whole frame in
+	 * full frame mode, in place on the calling thread.
+	 * 
 	 * @param input
 	 * @param scale
 	 * @return
-	 * @throws IOException 
 	 */
-	public Mat hallucinate(Mat input, int scale, int noTimes) throws IOException {
+	public Mat hallucinate(Mat input, int scale, int noTimes) {
 		if(this.ishProcessingEnabled() && this.ishOnTouch()) {
-			
-			// Because of memory constraints, limit the image to a submat within the center
-			Mat inputFrame = input.submat((int)hTouch.x - (96/2), (int)hTouch.x + (96/2), (int)hTouch.y - (128/2), (int)hTouch.y + (128/2));
-			
-			// before hallucinating, apply a lanczos filter to the image to blow it up
-			Mat lanczosInput = lanczos(inputFrame,scale);
-			
-			// Save the original image, and the lanczos
-			this.saveImage(inputFrame, "Initial" + noTimes);
-			this.saveImage(lanczosInput, "LanczosAntiBlur" + noTimes);
-			
-			// Make the final image as the same size of the lanzcos'd input
-			Mat finalImage = new Mat(lanczosInput.height(),lanczosInput.width(), CvType.CV_8UC3); // or same type as well?
-			
-			Double threshold = (double) (100);
-			
-			// Deconstruct the given LR image into its parent structures
-			List<ParentStructure> inputParentStructures = deconstructImage(lanczosInput);
-			
-			// The below comparisons for each element to each every other element
-			// takes far too long
-			
-			// Look into optimising it via an algorithm, via java data types and via setting the threshold for "GOOD ENOUGH"
-			// instead of optimising for the best. In fact, this last method may be the best as in this case we are looking at reasonably binary options.
-			
-			// Writing data to file to get an accurate threshold value
-			File root = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-			File scoreDifferenceData = new File(root, "hallucinateThresholds.txt");
-			FileWriter writer = new FileWriter(scoreDifferenceData);
-			
-			// For each ps in the low-res image
-			for(int i=0; i < inputParentStructures.size(); i++) {
-				ParentStructure currentInputPS = inputParentStructures.get(i);
-				// For each image in the high-res library
-				for(Map.Entry<String, List<ParentStructure>> image : this.library.entrySet()) {
-					// For each parent structure in the high-res image
-					Log.i("LOOP 1", "THIS IS IN LOOP 1");
-					for(int j=0; j<image.getValue().size(); j++) {
-						ParentStructure currentHRPS = image.getValue().get(j);
-						Log.i("LOOP 2", String.valueOf(image.getValue().size())+ " j= " + String.valueOf(j) + " i= " + String.valueOf(i) + 
-								" score difference: " + String.valueOf(Math.abs(currentHRPS.getWeightedScore()-currentInputPS.getWeightedScore())));
-						 
-						writer.append("i: " + String.valueOf(i) + " j: " + String.valueOf(j) + " Score Difference: " + 
-								String.valueOf(Math.abs(currentHRPS.getWeightedScore()-currentInputPS.getWeightedScore())));
-						writer.flush();
-						  
-						// If the weightedScores are within a threshold, 
-						if(Math.abs(currentHRPS.getWeightedScore()-currentInputPS.getWeightedScore())<threshold) {
-							// set this parent structure to be the current closest
-							// and make threshold this new difference
-							//threshold = Math.abs(currentHRPS.getWeightedScore()-currentInputPS.getWeightedScore());
-							
-							// In a speed-updated version, have a fixed threshold and use it to break this inner loop
-							finalImage.put((int)Math.floor(i/lanczosInput.width()),i%lanczosInput.width(), 
-									this.originalHrImages.get(image.getKey()).get((int)currentHRPS.getPixelPosition().y, (int)currentHRPS.getPixelPosition().x));
-							break;
+			if(this.ishFullFrame()) {
+				this.hallucinateFrame(input.clone(), scale, noTimes).release();
+			} else {
+				this.hallucinateRegion(this.copyTouchRegion(input), scale, noTimes).release();
+			}
+		}
+		return input;	
+	}
+	
+	/**
+	 * Copies the region around the last touch out of the frame, so that the
+	 * frame can be handed back to the camera while the copy is processed.
+	 * 
+	 * @param input
+	 * 				The current camera frame
+	 * @return A copy of the touched region, owned by the caller
+	 */
+	public Mat copyTouchRegion(Mat input) {
+		// Because of memory constraints, limit the image to a submat within the center
+		Mat inputFrame = input.submat((int)hTouch.x - (96/2), (int)hTouch.x + (96/2), (int)hTouch.y - (128/2), (int)hTouch.y + (128/2));
+		return inputFrame.clone();
+	}
+	
+	/**
+	 * Hallucinates a region that has already been copied out of the frame.
+	 * This is the part that HallucinationWorker runs in the background,
+	 * and it stops early if its thread is interrupted.
+	 * 
+	 * @param inputFrame
+	 * 				The low-res region
+	 * @param scale
+	 * 				The magnification factor, a power of 2
+	 * @param noTimes
+	 * 				The number used to name the saved images
+	 * @return The hallucinated high-res region
+	 * @throws CancellationException
+	 * 				If the thread was interrupted before the job finished
+	 * @throws IllegalArgumentException
+	 * 				If the scale is not a power of 2
+	 */
+	public Mat hallucinateRegion(Mat inputFrame, int scale, int noTimes) {
+		checkScale(scale);
+		
+		// A deadline policy's budget runs from here
+		long frameStart = System.nanoTime();
+		SearchPolicy policy = this.searchPolicy;
+		GradientRefiner currentRefiner = this.refiner;
+		
+		// Save the original image before it is released
+		this.saveImage(inputFrame, "Initial" + noTimes);
+		byte[] lowRes = currentRefiner != null ? readLowRes(inputFrame) : null;
+		
+		// before hallucinating, apply a lanczos filter to the image to blow it up
+		List<ImagePyramid> stages = magnify(inputFrame, scale);
+		inputFrame.release();
+		ImagePyramid magnified = stages.get(stages.size()-1);
+		Mat lanczosInput = magnified.getImage();
+		
+		// Save the lanczos
+		this.saveImage(lanczosInput, "LanczosAntiBlur" + noTimes);
+		if(Thread.currentThread().isInterrupted()) {
+			this.releaseStages(stages);
+			checkCancelled();
+		}
+		
+		// Make the final image as the same size of the lanzcos'd input
+		Mat finalImage = new Mat(lanczosInput.height(),lanczosInput.width(), CvType.CV_8UC3); // or same type as well?
+		
+		// Summarise the match distances to get an accurate threshold value
+		ThresholdTrace trace = this.thresholdTrace;
+		try {
+			PatchAccumulator accumulator = new PatchAccumulator(this.sourcePixels);
+			byte[] output = matchImage(magnified, trace, policy, frameStart, null, 0, 0, accumulator);
+			if(lowRes != null) {
+				GradientRefiner.Refinement refinement = currentRefiner.newRefinement();
+				refine(refinement, output, lowRes, finalImage.cols(), finalImage.rows(), scale);
+				currentRefiner.merge(refinement);
+			}
+			finalImage.put(0, 0, output);
+		} catch (RuntimeException e) {
+			finalImage.release();
+			throw e;
+		} finally {
+			this.releaseStages(stages);
+		}
+		if(trace != null) {
+			trace.writeSummary("FinalImage" + noTimes);
+		}
+
+		this.saveImage(finalImage, "FinalImage" + noTimes);
+		HallucinationMetrics currentMetrics = this.metrics;
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.TOTAL, frameStart);
+		}
+		return finalImage;
+	}
+	
+	/**
+	 * Hallucinates a whole frame, one overlapping tile at a time, so that the
+	 * memory used besides the result is bounded by the tile size. Each tile is
+	 * magnified, deconstructed and matched on its own, then faded into the
+	 * tiles already written across their overlap so that no seams show.
+	 * With a coherence cache set, matches carry over from the previous frame.
+	 * 
+	 * @param frame
+	 * 				A copy of the low-res frame, which is released
+	 * @param scale
+	 * 				The magnification factor, a power of 2
+	 * @param noTimes
+	 * 				The number used to name the saved images
+	 * @return The hallucinated high-res frame
+	 * @throws CancellationException
+	 * 				If the thread was interrupted before the job finished
+	 * @throws IllegalArgumentException
+	 * 				If the scale is not a power of 2
+	 */
+	public Mat hallucinateFrame(Mat frame, int scale, int noTimes) {
+		checkScale(scale);
+		
+		// Every tile shares the one budget of a deadline policy
+		long frameStart = System.nanoTime();
+		SearchPolicy policy = this.searchPolicy;
+		GradientRefiner currentRefiner = this.refiner;
+		
+		this.saveImage(frame, "Initial" + noTimes);
+		
+		int size;
+		int overlap;
+		synchronized(this) {
+			size = this.tileSize;
+			overlap = this.tileOverlap;
+		}
+		// A frame smaller than a tile is one tile
+		int tileWidth = Math.min(size, frame.cols());
+		int tileHeight = Math.min(size, frame.rows());
+		int[] tileX = tileStarts(frame.cols(), tileWidth, overlap);
+		int[] tileY = tileStarts(frame.rows(), tileHeight, overlap);
+		
+		Mat finalImage = new Mat(frame.rows()*scale, frame.cols()*scale, CvType.CV_8UC3);
+		ThresholdTrace trace = this.thresholdTrace;
+		// The part of the result under the current tile, and the patches reconstructing it, reused for every tile
+		byte[] blended = new byte[tileWidth*scale*tileHeight*scale*3];
+		PatchAccumulator accumulator = new PatchAccumulator(this.sourcePixels);
+		GradientRefiner.Refinement refinement = currentRefiner != null ? currentRefiner.newRefinement() : null;
+		
+		// Tiles are remembered by position, so the cache only carries over between frames laid out alike
+		CoherenceCache cache = this.coherenceCache;
+		byte[] pixels = null;
+		if(cache != null) {
+			cache.startFrame(frame.cols() + "x" + frame.rows() + "x" + frame.type() + "*" + scale
+					+ "/" + tileWidth + "x" + tileHeight + "+" + overlap);
+			if(frame.depth() == CvType.CV_8U) {
+				pixels = new byte[tileWidth*tileHeight*frame.channels()];
+			}
+		}
+		try {
+			for(int ty=0; ty < tileY.length; ty++) {
+				for(int tx=0; tx < tileX.length; tx++) {
+					checkCancelled();
+					int index = ty*tileX.length + tx;
+					Mat tile = frame.submat(tileY[ty], tileY[ty]+tileHeight, tileX[tx], tileX[tx]+tileWidth);
+					
+					// A tile whose pixels are exactly as they were in the last frame keeps all of its matches
+					ParentStructureMatcher currentMatcher = this.matcher;
+					double threshold = this.matchThreshold;
+					CoherenceCache.Tile unchanged = null;
+					long contentHash = 0;
+					if(pixels != null) {
+						tile.get(0, 0, pixels);
+						contentHash = CoherenceCache.contentHash(pixels, pixels.length);
+						unchanged = cache.findUnchanged(index, contentHash, currentMatcher, threshold, policy);
+					}
+					
+					byte[] output;
+					byte[] lowRes = refinement != null ? readLowRes(tile) : null;
+					List<ImagePyramid> stages = magnify(tile, scale);
+					tile.release();
+					try {
+						if(unchanged != null) {
+							// Only the magnification is needed, to show where no patch reaches
+							output = readPixels(stages.get(stages.size()-1).getImage());
+							reconstruct(unchanged.getLevels(), unchanged.getPixelX(), unchanged.getPixelY(), unchanged.getMatches(),
+									currentMatcher, policy, accumulator, output, tileWidth*scale, tileHeight*scale);
+						} else {
+							output = matchImage(stages.get(stages.size()-1), trace, policy, frameStart, cache, index, contentHash,
+									accumulator);
 						}
+					} finally {
+						this.releaseStages(stages);
+					}
+					if(lowRes != null) {
+						refine(refinement, output, lowRes, tileWidth*scale, tileHeight*scale, scale);
 					}
+					
+					// How far this tile overlaps the ones already written to its left and above, in result pixels
+					int left = tx == 0 ? 0 : (tileX[tx-1]+tileWidth-tileX[tx])*scale;
+					int top = ty == 0 ? 0 : (tileY[ty-1]+tileHeight-tileY[ty])*scale;
+					Mat region = finalImage.submat(tileY[ty]*scale, (tileY[ty]+tileHeight)*scale,
+							tileX[tx]*scale, (tileX[tx]+tileWidth)*scale);
+					blendTile(region, output, blended, tileWidth*scale, tileHeight*scale, left, top);
+					region.release();
 				}
 			}
-			writer.close();
-
-			this.saveImage(finalImage, "FinalImage" + noTimes);
+		} catch (RuntimeException e) {
+			finalImage.release();
+			throw e;
+		} finally {
+			frame.release();
+			if(refinement != null) {
+				currentRefiner.merge(refinement);
+			}
+		}
+		if(trace != null) {
+			trace.writeSummary("FinalImage" + noTimes);
+		}
+		
+		this.saveImage(finalImage, "FinalImage" + noTimes);
+		HallucinationMetrics currentMetrics = this.metrics;
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.TOTAL, frameStart);
+		}
+		return finalImage;
+	}
+	
+	/**
+	 * The starts of tiles along one side of a frame, each overlapping the one
+	 * before by at least the overlap, with the last one flush with the end.
+	 */
+	static int[] tileStarts(int length, int tile, int overlap) {
+		if(length <= tile) {
+			return new int[] {0};
+		}
+		int step = tile - overlap;
+		int[] starts = new int[(length - tile + step - 1)/step + 1];
+		for(int i=0; i < starts.length; i++) {
+			starts[i] = Math.min(i*step, length - tile);
+		}
+		return starts;
+	}
+	
+	/**
+	 * Writes a tile into its region of the result, fading it in linearly across
+	 * its overlap with the tiles already written to its left and above.
+	 */
+	private static void blendTile(Mat region, byte[] tile, byte[] blended, int width, int height, int left, int top) {
+		if(left == 0 && top == 0) {
+			region.put(0, 0, tile);
+			return;
+		}
+		region.get(0, 0, blended);
+		for(int y=0; y < height; y++) {
+			float alphaY = y < top ? (y+0.5f)/top : 1;
+			for(int x=0; x < width; x++) {
+				float alpha = alphaY*(x < left ? (x+0.5f)/left : 1);
+				int position = 3*(y*width + x);
+				for(int c=0; c<3; c++) {
+					blended[position+c] = (byte)Math.round((blended[position+c]&0xff)*(1-alpha) + (tile[position+c]&0xff)*alpha);
+				}
+			}
+		}
+		region.put(0, 0, blended);
+	}
+	
+	/**
+	 * Deconstructs the last stage of a magnification and matches every one of its structures,
+	 * giving the hallucinated pixels as a 3 channel buffer the size of the image, built
+	 * out of the patches matched over the magnified image.
+	 * With a cache, structures that barely changed since the last frame keep
+	 * their earlier match, and this frame's matches are remembered for the next.
+	 * 
+	 * @param policy
+	 * 				How each structure is searched for
+	 * @param frameStart
+	 * 				The System.nanoTime the frame started at, for a deadline policy
+	 * @param cache
+	 * 				The matches of earlier frames, or null to search every structure
+	 * @param tile
+	 * 				Which tile of the frame the image is, for the cache
+	 * @param contentHash
+	 * 				The hash of the tile's low-res pixels, for the cache
+	 * @param accumulator
+	 * 				Blends the matched patches, reused from one call to the next
+	 */
+	private byte[] matchImage(ImagePyramid magnified, ThresholdTrace trace, SearchPolicy policy, long frameStart,
+			CoherenceCache cache, int tile, long contentHash, PatchAccumulator accumulator) {
+		// Deconstruct the given LR image into its parent structures
+		Mat upscaled = magnified.getImage();
+		HallucinationMetrics currentMetrics = this.metrics;
+		ParentStructureTable inputParentStructures = deconstructImage(magnified, currentMetrics);
+		checkCancelled();
+		
+		// Comparing each element to every other element took far too long,
+		// so the library is held in a search structure built once at startup
+		ParentStructureMatcher currentMatcher = this.matcher;
+		double threshold = this.matchThreshold;
+		
+		int count = inputParentStructures.size();
+		float[] queries = new float[count*ParentStructure.FEATURE_LENGTH];
+		int[] levels = new int[count];
+		for(int i=0; i < count; i++) {
+			inputParentStructures.packFeatures(i, queries, i*ParentStructure.FEATURE_LENGTH);
+			levels[i] = inputParentStructures.getPyramidHeight(i);
+		}
+		// Each structure keeps as many matches as the policy asks for
+		int[] matches = new int[count*policy.getK()];
+		Arrays.fill(matches, UNSEARCHED);
+		if(cache != null) {
+			cache.reuseMatches(tile, queries, matches, UNSEARCHED, currentMatcher, threshold, policy);
+		}
+		
+		// Only a cache needs to know which searches ran out of time
+		boolean[] cutShort = cache != null ? new boolean[count] : null;
+		long matchStart = currentMetrics != null ? System.nanoTime() : 0;
+		matchStructures(queries, levels, matches, cutShort, currentMatcher, threshold, policy, frameStart, trace);
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.MATCHING, matchStart);
+		}
+		if(cache != null) {
+			cache.put(tile, contentHash, queries, inputParentStructures, matches, cutShort, currentMatcher, threshold, policy);
+		}
+		
+		// Wherever no patch reaches, the magnification shows through
+		byte[] output = readPixels(upscaled);
+		reconstruct(inputParentStructures.getLevelColumn(), inputParentStructures.getPixelXColumn(),
+				inputParentStructures.getPixelYColumn(), matches, currentMatcher, policy, accumulator, output,
+				upscaled.cols(), upscaled.rows());
+		return output;
+	}
+	
+	/**
+	 * Blends the library patch of every match over the cell of the structure
+	 * it was found for, the matches of one structure sharing its weight.
+	 * 
+	 * @param levels
+	 * 				The pyramid height of each input structure
+	 * @param pixelX
+	 * 				The column of each input structure on its height
+	 * @param pixelY
+	 * 				The row of each input structure on its height
+	 * @param matches
+	 * 				The policy's number of matches for each structure, -1 past the last one found
+	 * @param output
+	 * 				The 3 channel buffer written over, holding what uncovered pixels show
+	 */
+	private void reconstruct(byte[] levels, short[] pixelX, short[] pixelY, int[] matches, ParentStructureMatcher currentMatcher,
+			SearchPolicy policy, PatchAccumulator accumulator, byte[] output, int width, int height) {
+		HallucinationMetrics currentMetrics = this.metrics;
+		long start = currentMetrics != null ? System.nanoTime() : 0;
+		int k = policy.getK();
+		int count = matches.length/k;
+		accumulator.reset(width, height);
+		for(int i=0; i < count; i++) {
+			checkCancelled();
+			int first = i*k;
+			int matched = 0;
+			while(matched < k && matches[first+matched] >= 0) {
+				matched++;
+			}
+			for(int j=0; j < matched; j++) {
+				int match = matches[first+j];
+				accumulator.add(levels[i], pixelX[i], pixelY[i], currentMatcher.getImageName(match),
+						currentMatcher.getPyramidHeight(match), currentMatcher.getPixelX(match), currentMatcher.getPixelY(match),
+						1f/matched);
+			}
+		}
+		accumulator.write(output);
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.RECONSTRUCTION, start);
+		}
+	}
+	
+	/**
+	 * The pixels of an 8 bit image as a continuous 3 channel BGR buffer, the order
+	 * the library patches are kept in, converting camera frames from RGBA and
+	 * spreading grey across the channels. Any other depth is left black.
+	 */
+	private byte[] readPixels(Mat image) {
+		byte[] pixels = new byte[image.rows()*image.cols()*3];
+		if(image.depth() != CvType.CV_8U) {
+			return pixels;
+		}
+		if(image.channels() == 3 && image.isContinuous()) {
+			image.get(0, 0, pixels);
+			return pixels;
+		}
+		Mat converted = this.matPool.borrow(image.size(), CvType.CV_8UC3);
+		if(image.channels() == 4) {
+			Imgproc.cvtColor(image, converted, Imgproc.COLOR_RGBA2BGR);
+		} else if(image.channels() == 1) {
+			Imgproc.cvtColor(image, converted, Imgproc.COLOR_GRAY2BGR);
+		} else {
+			image.copyTo(converted);
+		}
+		converted.get(0, 0, pixels);
+		this.matPool.giveBack(converted);
+		return pixels;
+	}
+	
+	// The low-res pixels a refinement holds the result to, or null if they are not 8 bit
+	private byte[] readLowRes(Mat image) {
+		return image.depth() == CvType.CV_8U ? readPixels(image) : null;
+	}
+	
+	// Refines a hallucinated buffer in place, in bands on the matching threads
+	private void refine(GradientRefiner.Refinement refinement, byte[] output, byte[] lowRes, int width, int height, int scale) {
+		ExecutorService executor;
+		int parallelism;
+		synchronized(this) {
+			executor = this.matchingExecutor;
+			parallelism = this.matchingParallelism;
+		}
+		HallucinationMetrics currentMetrics = this.metrics;
+		long start = currentMetrics != null ? System.nanoTime() : 0;
+		refinement.refine(output, lowRes, width, height, scale, executor, parallelism);
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.REFINEMENT, start);
+		}
+	}
+	
+	/**
+	 * Matches every input structure still to be searched against the library.
+	 * The structures are split into tiles of consecutive rows, several per
+	 * thread so that uneven tiles still balance out.
+	 * 
+	 * @param queries
+	 * 				The packed features of each structure
+	 * @param levels
+	 * 				The pyramid height of each structure
+	 * @param matches
+	 * 				The policy's number of matches for each structure, -1 past the last one found,
+	 * 				where structures starting with UNSEARCHED are searched and filled in
+	 * @param cutShort
+	 * 				Set for each structure whose search the policy cut short, or null if not wanted
+	 */
+	private void matchStructures(final float[] queries, final int[] levels, final int[] matches, final boolean[] cutShort,
+			final ParentStructureMatcher currentMatcher,
+			final double threshold, final SearchPolicy policy, final long frameStart, final ThresholdTrace trace) {
+		ExecutorService executor;
+		int parallelism;
+		synchronized(this) {
+			executor = this.matchingExecutor;
+			parallelism = this.matchingParallelism;
+		}
+		
+		final int count = matches.length/policy.getK();
+		if(executor == null || count < 2*parallelism) {
+			matchRange(queries, levels, matches, cutShort, 0, count, currentMatcher, threshold, policy, frameStart, trace);
+			return;
+		}
+		
+		int tiles = 4*parallelism;
+		int tileSize = (count+tiles-1)/tiles;
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for(int start = 0; start < count; start += tileSize) {
+			final int tileStart = start;
+			final int tileEnd = Math.min(start+tileSize, count);
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					matchRange(queries, levels, matches, cutShort, tileStart, tileEnd, currentMatcher, threshold, policy,
+							frameStart, trace);
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for(Future<Void> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			// The job was cancelled, so stop the tiles still running
+			for(Future<Void> result : results) {
+				result.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			checkCancelled();
+		} catch (ExecutionException e) {
+			for(Future<Void> result : results) {
+				result.cancel(true);
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private void matchRange(float[] queries, int[] levels, int[] matches, boolean[] cutShort, int start, int end,
+			ParentStructureMatcher currentMatcher,
+			double threshold, SearchPolicy policy, long frameStart, ThresholdTrace trace) {
+		int k = policy.getK();
+		int[] found = new int[k];
+		int[] nearest = new int[1];
+		SearchPolicy.Search search = policy.newSearch(frameStart);
+		ThresholdTrace.Recorder recorder = trace == null ? null : trace.newRecorder();
+		
+		// For each ps in the low-res image
+		for(int i=start; i < end; i++) {
+			checkCancelled();
+			
+			// The library parent structures within the threshold the policy settled on, if any
+			int first = i*k;
+			if(matches[first] == UNSEARCHED) {
+				int offset = i*ParentStructure.FEATURE_LENGTH;
+				if(recorder != null && recorder.sampleNext()) {
+					// Sampled structures record their nearest distance even when it misses the threshold
+					if(currentMatcher.findNearest(queries, offset, 1, nearest) > 0) {
+						recorder.record(currentMatcher.getDistance(queries, offset, nearest[0]));
+					}
+				}
+				int count = currentMatcher.findWithin(queries, offset, levels[i], threshold, search, found);
+				if(search.countSearch(count) && cutShort != null) {
+					cutShort[i] = true;
+				}
+				for(int j=0; j<k; j++) {
+					matches[first+j] = j < count ? found[j] : -1;
+				}
+			}
+		}
+		
+		policy.merge(search);
+		if(recorder != null) {
+			trace.merge(recorder);
+		}
+	}
+	
+	// Abandon the current job if its thread has been interrupted
+	private void checkCancelled() {
+		if(Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("Hallucination interrupted");
 		}
-		return input;	
 	}
 	
 	private void saveImage(Mat img, String filename) {
-		Log.i("saveImage", filename);
-		Mat intermediateMat = new Mat();
-	    Imgproc.cvtColor(img, intermediateMat, Imgproc.COLOR_RGBA2BGR, 3);
-	    
-	    File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-	   
-	    filename = filename + ".png";
-	    File file = new File(path, filename);
-	    filename = file.toString();
- 
-	    Highgui.imwrite(filename, intermediateMat);
+		if(!this.savingImages) {
+			return;
+		}
+		HallucinationMetrics currentMetrics = this.metrics;
+		long start = currentMetrics != null ? System.nanoTime() : 0;
+		this.imageStore.write(filename, img);
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.SAVE, start);
+		}
 	}
 
+	// Only powers of 2 can be reached in 2x stages
+	private static void checkScale(int scale) {
+		if(scale<1||(scale&(scale-1))!=0) {
+			throw new IllegalArgumentException("Scale must be a power of 2");
+		}
+	}
+	
+	/**
+	 * Magnifies an image in cascading 2x stages up to the scale. The first stage
+	 * gets a pyramid of its own, and each later stage's pyramid is stacked on the
+	 * one before, so that a further 2x costs one lanczos and one level rather
+	 * than a whole new pyramid.
+	 * 
+	 * @param input
+	 * 				The low-res image, which is left alone
+	 * @return The pyramid of every stage in order, the last being the full magnification,
+	 * 			to be given to releaseStages once done with
+	 */
+	private List<ImagePyramid> magnify(Mat input, int scale) {
+		HallucinationMetrics currentMetrics = this.metrics;
+		long start = currentMetrics != null ? System.nanoTime() : 0;
+		List<ImagePyramid> stages = new ArrayList<ImagePyramid>();
+		ImagePyramid stage = new ImagePyramid(lanczos(input, Math.min(scale, 2)), this.matPool);
+		stages.add(stage);
+		for(int reached = 2; reached < scale; reached *= 2) {
+			stage = new ImagePyramid(lanczos(stage.getImage(), 2), stage);
+			stages.add(stage);
+		}
+		if(currentMetrics != null) {
+			currentMetrics.recordSince(HallucinationMetrics.Stage.LANCZOS, start);
+		}
+		return stages;
+	}
+	
+	private void releaseStages(List<ImagePyramid> stages) {
+		for(ImagePyramid stage : stages) {
+			stage.release();
+			this.matPool.giveBack(stage.getImage());
+		}
+	}
+
+	// The result is borrowed from the pool
 	private Mat lanczos(Mat input, int scale) {
 		
-		Mat output = new Mat(input.height()*scale, input.width()*scale, CvType.CV_8UC3);
 		Size outputSize = new Size(input.width()*scale,input.height()*scale);
+		Mat output = this.matPool.borrow(outputSize, input.type());
 	    // INTER_LANCZOS4 is 4
 		// INTER_CUBIC is 2
 		Imgproc.resize(input, output, outputSize,2,2,4);
 	    
-	    input.release();
-	    
 		return output;
 	}
 
 	/**
-	 * A function to decompose the given image into a list of parentStructures;
-	 * one for each pixel in the image.
+	 * A function to decompose the given image into a table of parentStructures;
+	 * one row for each pixel in the image.
 	 * @param input
 	 * @return
 	 */
-	private List<ParentStructure> deconstructImage(Mat input) {
+	ParentStructureTable deconstructImage(Mat input) {
+		ImagePyramid pyramid = new ImagePyramid(input, this.matPool);
+		try {
+			return deconstructImage(pyramid);
+		} finally {
+			pyramid.release();
+		}
+	}
+	
+	/**
+	 * Decomposes the image of a pyramid that has already been started, such as
+	 * one stage of a magnification, reusing whatever levels it already has.
+	 * The pyramid is left to the caller to release.
+	 */
+	ParentStructureTable deconstructImage(ImagePyramid pyramid) {
+		return deconstructImage(pyramid, null);
+	}
+	
+	/**
+	 * Decomposes the image of a pyramid as above, recording the time taken to
+	 * build its levels apart from the time taken to fill the structures.
+	 * 
+	 * @param metrics
+	 * 				Records the stages, or null to record nothing
+	 */
+	private ParentStructureTable deconstructImage(ImagePyramid pyramid, HallucinationMetrics metrics) {
+		long start = metrics != null ? System.nanoTime() : 0;
+		long pyramidNanos = 0;
 		
-		Log.i("Image size: ", input.size().toString());
+		Mat input = pyramid.getImage();
+		HallucinationLog.i("Image size: ", input.size().toString());
 		int scale = 1;
 		int delta = 0;
 		int ddepth = CV_16S;
 		
-		List<ParentStructure> currentStructures = new ArrayList<ParentStructure>();
-		List<Mat> gaussianPyramid = new ArrayList<Mat>();
 		List<Mat> laplacianPyramid = new ArrayList<Mat>();
 		List<Mat> hFirstDerivativePyramid = new ArrayList<Mat>();
 		List<Mat> vFirstDerivativePyramid = new ArrayList<Mat>();
 		List<Mat> hSecondDerivativePyramid = new ArrayList<Mat>();
 		List<Mat> vSecondDerivativePyramid = new ArrayList<Mat>();
 		
-		gaussianPyramid = getGaussianPyramid(input, 4, 6);
-		
-		// Each downsized image is then added
-		for(int i=4; i < 6; i++) {
-			// Instantialise all of the variables
-			Mat currentGray = new Mat(); 
-			Mat currentBlur = new Mat();
-			Mat grad_x = new Mat();
-			Mat grad_y = new Mat();
-			Mat grad2_x = new Mat();
-			Mat grad2_y = new Mat();
-			
-			Mat gaussian = gaussianPyramid.get(i-4).clone();
-			
-			// The laplacian calculated from the gaussian
-			laplacianPyramid.add(getLaplacian(input.clone(),i));
-			
-			// Apply a gaussian blur before computing the horizontal and vertical derivatives
-			// using either Scharr or Sobel (preferably Scharr)
-			Imgproc.GaussianBlur(gaussian, currentBlur, new Size(3,3), 0, 0, Imgproc.BORDER_DEFAULT);
-			gaussian.release();
-			Imgproc.cvtColor(currentBlur, currentGray, CV_RGB2GRAY);
-			currentBlur.release();
-			/// Gradient X
-			Imgproc.Sobel(currentGray, grad_x, ddepth, 1, 0, 3, scale, delta, Imgproc.BORDER_DEFAULT);
-			Imgproc.Sobel(grad_x, grad2_x, ddepth, 1, 0, 3, scale, delta, Imgproc.BORDER_DEFAULT);
-			/// Gradient Y
-			Imgproc.Sobel(currentGray, grad_y, ddepth, 0, 1, 3, scale, delta, Imgproc.BORDER_DEFAULT);
-			Imgproc.Sobel(grad_y, grad2_y, ddepth, 0, 1, 3, scale, delta, Imgproc.BORDER_DEFAULT);
-			currentGray.release();
-			
-			Core.convertScaleAbs( grad_x, grad_x);
-			Core.convertScaleAbs( grad2_x, grad2_x);
-			Core.convertScaleAbs( grad_y, grad_y);
-			Core.convertScaleAbs( grad2_y, grad2_y);
-
-			// form the first and second horizontal and vertical derivatives H1,H2,V1,V2 of the gaussian G(I)
-			hFirstDerivativePyramid.add(grad_x.clone());
-			grad_x.release();
-			vFirstDerivativePyramid.add(grad_y.clone());
-			grad_y.release();
-			hSecondDerivativePyramid.add(grad2_x.clone());
-			grad2_x.release();
-			vSecondDerivativePyramid.add(grad2_y.clone());
-			grad2_y.release();
-			
-			// Call the garbage collector manually
-			System.gc();
-		}
-		
-		// Finally, convert all of this data into usable Parent Structures
-		
-		// Give the derivatives half as much weight as per bakerSimon2002
-		Double[] weightings = {1.0,0.5,0.5,0.25,0.25};
-		
-		// For all height levels
-		for(int level = 4; level < 6; level++) {
-			// Use the gaussian as a position reference for each height level in the pyramid
-			Mat gCurrent = gaussianPyramid.get(level-4).clone();
-			for(int k = 0; k < gCurrent.rows(); k++) {
-				for(int l = 0; l < gCurrent.cols(); l++) {
-					
-					List<double[]> parentFivePoints;
-					List<double[]> currentFivePoints = extractPoints(laplacianPyramid,hFirstDerivativePyramid,
-							hSecondDerivativePyramid,vFirstDerivativePyramid,vSecondDerivativePyramid, new Point(l,k), level-4);
-					if(level==5) {
-						parentFivePoints = new ArrayList<double[]>();
-					} else {
-						parentFivePoints = extractPoints(laplacianPyramid,hFirstDerivativePyramid,
-							hSecondDerivativePyramid,vFirstDerivativePyramid,vSecondDerivativePyramid, new Point(Math.floor(l/2),Math.floor(k/2)), level-4+1);
-					}
-					ParentStructure ps = new ParentStructure(currentFivePoints, parentFivePoints, weightings, level, new Point(l,k));
-					currentStructures.add(ps);
+		// Every level comes from one shared pyramid, built once up to the highest level needed.
+		// Height h takes the gaussian reduced h+1 times and the laplacian reduced h-1 times.
+		try {
+			// Each downsized image is then added
+			for(int i=this.lowestLevel; i <= this.highestLevel; i++) {
+				long levelStart = metrics != null ? System.nanoTime() : 0;
+				Mat gaussian = pyramid.getGaussian(i+1);
+				Size size = gaussian.size();
+				
+				// The laplacian calculated from the gaussian
+				laplacianPyramid.add(pyramid.getLaplacian(i-1));
+				if(metrics != null) {
+					pyramidNanos += System.nanoTime()-levelStart;
 				}
 				
-				// Call the garbage collector manually
-				System.gc();
+				// Instantialise all of the variables, reusing the scratch Mats of earlier images of this size
+				Mat currentBlur = this.matPool.borrow(size, gaussian.type());
+				Mat currentGray = this.matPool.borrow(size, CvType.makeType(gaussian.depth(), 1));
+				Mat grad_x = this.matPool.borrow(size, ddepth);
+				Mat grad_y = this.matPool.borrow(size, ddepth);
+				Mat grad2_x = this.matPool.borrow(size, ddepth);
+				Mat grad2_y = this.matPool.borrow(size, ddepth);
+				
+				// Apply a gaussian blur before computing the horizontal and vertical derivatives
+				// using either Scharr or Sobel (preferably Scharr)
+				Imgproc.GaussianBlur(gaussian, currentBlur, new Size(3,3), 0, 0, Imgproc.BORDER_DEFAULT);
+				Imgproc.cvtColor(currentBlur, currentGray, CV_RGB2GRAY);
+				this.matPool.giveBack(currentBlur);
+				/// Gradient X
+				Imgproc.Sobel(currentGray, grad_x, ddepth, 1, 0, 3, scale, delta, Imgproc.BORDER_DEFAULT);
+				Imgproc.Sobel(grad_x, grad2_x, ddepth, 1, 0, 3, scale, delta, Imgproc.BORDER_DEFAULT);
+				/// Gradient Y
+				Imgproc.Sobel(currentGray, grad_y, ddepth, 0, 1, 3, scale, delta, Imgproc.BORDER_DEFAULT);
+				Imgproc.Sobel(grad_y, grad2_y, ddepth, 0, 1, 3, scale, delta, Imgproc.BORDER_DEFAULT);
+				this.matPool.giveBack(currentGray);
+	
+				// form the first and second horizontal and vertical derivatives H1,H2,V1,V2 of the gaussian G(I)
+				hFirstDerivativePyramid.add(absolute(grad_x));
+				vFirstDerivativePyramid.add(absolute(grad_y));
+				hSecondDerivativePyramid.add(absolute(grad2_x));
+				vSecondDerivativePyramid.add(absolute(grad2_y));
 			}
+			
+			// Finally, convert all of this data into usable Parent Structures,
+			// copying each level out of its Mats once rather than a pixel at a time
+			FeatureLevel[] featureLevels = new FeatureLevel[this.highestLevel-this.lowestLevel+1];
+			int capacity = 0;
+			for(int i=0; i < featureLevels.length; i++) {
+				featureLevels[i] = FeatureLevel.read(laplacianPyramid.get(i), hFirstDerivativePyramid.get(i),
+						hSecondDerivativePyramid.get(i), vFirstDerivativePyramid.get(i), vSecondDerivativePyramid.get(i),
+						this.matPool);
+				capacity += featureLevels[i].getWidth()*featureLevels[i].getHeight();
+			}
+			ParentStructureTable currentStructures = new ParentStructureTable(capacity, WEIGHTINGS);
+			
+			// For all height levels
+			for(int level = this.lowestLevel; level <= this.highestLevel; level++) {
+				extractStructures(featureLevels, level, currentStructures);
+			}
+			if(metrics != null) {
+				metrics.record(HallucinationMetrics.Stage.PYRAMID, pyramidNanos);
+				metrics.record(HallucinationMetrics.Stage.FEATURES, System.nanoTime()-start-pyramidNanos);
+			}
+			return currentStructures;
+		} finally {
+			releaseAll(hFirstDerivativePyramid);
+			releaseAll(vFirstDerivativePyramid);
+			releaseAll(hSecondDerivativePyramid);
+			releaseAll(vSecondDerivativePyramid);
+		}
+	}
+	
+	private void releaseAll(List<Mat> mats) {
+		for(Mat mat : mats) {
+			this.matPool.giveBack(mat);
 		}
-		return currentStructures;
+	}
+	
+	// The absolute value of a signed derivative as 8 bits, giving back the signed one
+	private Mat absolute(Mat derivative) {
+		Mat result = this.matPool.borrow(derivative.size(), CvType.CV_8UC1);
+		Core.convertScaleAbs(derivative, result);
+		this.matPool.giveBack(derivative);
+		return result;
 	}
 
 
 	/**
 	 * A function to decompose the library of high-resolution images
-	 * into a mapping from the image name to a list of parentStructure objects.
+	 * into a mapping from the image name to a table of parentStructures.
+	 * Each image is read in and deconstructed as its own task across all cores,
+	 * and becomes searchable as soon as it is ready. Once every image is done
+	 * the library is written to the cache.
 	 * It should be called at app-startup.
-	 * @return
 	 */
-	private Map<String, List<ParentStructure>> deconstructLibrary() {
-		
-		Map<String, List<ParentStructure>> library = new HashMap<String, List<ParentStructure>>();
+	private synchronized void deconstructLibrary() {
 		
-		// Take all the images from the svg image library of text
-		Map<String, Mat> storedImages = new HashMap<String,Mat>();
+		if(this.libraryFiles.isEmpty()) {
+			HallucinationLog.i("deconstructLibrary", "No images found in library location");
+			return;
+		}
 		
-		Log.i("Path", Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES).getAbsolutePath());
-		storedImages = this.readInImages(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), storedImages);
+		this.libraryExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HallucinationLibrary-" + count++);
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
 		
-		if(storedImages != null) {
-			this.originalHrImages.putAll(storedImages);
-		} else {
-			Log.i("deconstructLibrary", "No images found in library location");
-			return library;
+		for(final Map.Entry<String, File> image : this.libraryFiles.entrySet()) {
+			this.libraryExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deconstructLibraryImage(image.getKey(), image.getValue());
+				}
+			});
 		}
-		
-		// for each image I, form the Gaussian pyramid G0(I) -> GN(I)
-		// and the Laplacian pyramid L(I)
-		Iterator<Entry<String, Mat>> it = storedImages.entrySet().iterator();
-		while(it.hasNext()) {
-			Entry<String, Mat> pair = it.next();
-			String imageName = (String) pair.getKey();
-			Mat current = (Mat) pair.getValue();
-			
-			List<ParentStructure> currentStructures = this.deconstructImage(current);
-			
-			library.put(imageName, currentStructures);
-			it.remove();
+		this.libraryExecutor.shutdown();
+	}
+	
+	// Form the Gaussian, Laplacian and derivative pyramids of one library image and publish its structures
+	private void deconstructLibraryImage(String imageName, File file) {
+		ParentStructureTable currentStructures = null;
+		ScoreIndex currentIndex = null;
+		try {
+			if(SvgRasterizer.isVector(file)) {
+				currentStructures = this.deconstructVectorImage(imageName, file);
+			} else {
+				Mat current = this.imageStore.read(file);
+				if((current!=null)&&(!current.empty())) {
+					HallucinationLog.i("deconstructLibrary", "Added image: " + file.getAbsolutePath());
+					this.libraryDimensions.put(imageName, current.size());
+					
+					ImagePyramid pyramid = new ImagePyramid(current, this.matPool);
+					try {
+						currentStructures = this.deconstructImage(pyramid);
+						// Only the level the patches are taken from is kept, not the whole image
+						this.sourcePixels.put(imageName, pyramid.getGaussian(this.sourcePixels.getLevel()));
+					} finally {
+						pyramid.release();
+						current.release();
+					}
+				}
+			}
+			if(currentStructures != null) {
+				// Sort this image's scores here, in parallel, so publishing is only a merge
+				currentIndex = new ScoreIndex(Collections.singletonMap(imageName, currentStructures));
+			}
+		} catch (RuntimeException e) {
+			HallucinationLog.i("deconstructLibrary", "Could not deconstruct " + imageName + ": " + e.getMessage());
 		}
-		
-		// Call the garbage collector manually
-		System.gc();
-		
-		return library;
+		publishLibraryImage(imageName, currentStructures, currentIndex);
 	}
 	
 	/**
-	 * A function to extract the 5 parent structure points of the level @level
-	 * from the given pyramid structures.
-	 * 
-	 * @param laplacianPyramid
-	 * @param hFirstDerivativePyramid
-	 * @param hSecondDerivativePyramid
-	 * @param vFirstDerivativePyramid
-	 * @param vSecondDerivativePyramid
-	 * @param point
-	 * @param level
-	 * @return
+	 * Deconstructs a vector library image drawn straight at the size of the
+	 * lowest pyramid level deconstruction reads, rather than drawn in full and
+	 * reduced down to it. It is drawn a second time at the level its
+	 * patches are kept at.
 	 */
-	private List<double[]> extractPoints(List<Mat> laplacianPyramid,
-			List<Mat> hFirstDerivativePyramid,
-			List<Mat> hSecondDerivativePyramid,
-			List<Mat> vFirstDerivativePyramid,
-			List<Mat> vSecondDerivativePyramid, Point point, int level) {
-		
-		List<double[]> parentPoints = new ArrayList<double[]>();
-		
-		parentPoints.add(laplacianPyramid.get(level).get((int)point.y,(int)point.x));
-		parentPoints.add(hFirstDerivativePyramid.get(level).get((int)point.y,(int)point.x));
-		parentPoints.add(hSecondDerivativePyramid.get(level).get((int)point.y,(int)point.x));
-		parentPoints.add(vFirstDerivativePyramid.get(level).get((int)point.y,(int)point.x));
-		parentPoints.add(vSecondDerivativePyramid.get(level).get((int)point.y,(int)point.x));
+	private ParentStructureTable deconstructVectorImage(String imageName, File file) {
+		SvgRasterizer rasterizer = new SvgRasterizer(file);
+		int baseLevel = this.lowestLevel-1;
+		Mat base = rasterizer.rasterize(1.0/(1 << baseLevel));
+		HallucinationLog.i("deconstructLibrary", "Added vector image: " + file.getAbsolutePath() + " at " + base.size());
+		ParentStructureTable structures;
+		ImagePyramid pyramid = new ImagePyramid(base, baseLevel, this.matPool);
+		try {
+			structures = this.deconstructImage(pyramid);
+		} finally {
+			pyramid.release();
+			base.release();
+		}
+		this.libraryDimensions.put(imageName, new Size(rasterizer.getWidth(1), rasterizer.getHeight(1)));
+		Mat source = rasterizer.rasterize(1.0/(1 << this.sourcePixels.getLevel()));
+		try {
+			this.sourcePixels.put(imageName, source);
+		} finally {
+			source.release();
+		}
+		return structures;
+	}
+	
+	private void publishLibraryImage(String imageName, ParentStructureTable structures, ScoreIndex index) {
+		LibraryListener listener;
+		int built;
+		int total;
+		boolean ready;
+		ScoreIndex mergeBase = null;
+		List<ScoreIndex> mergeBatch = null;
+		Map<String, ParentStructureTable> rebuildLibrary = null;
+		MatchingMode rebuildMode = null;
+		int rebuildGeneration = 0;
+		int rebuildCount = 0;
+		synchronized(this) {
+			boolean folding = this.matchingMode == MatchingMode.TREE || this.matchingMode == MatchingMode.SHARDED;
+			if(structures != null) {
+				// The image is searchable from here on, through its own index or matcher until it is folded in
+				this.library.put(imageName, structures);
+				this.pendingIndexes.add(index);
+				this.pendingEntries += index.size();
+				if(folding) {
+					Map<String, ParentStructureTable> image = Collections.singletonMap(imageName, structures);
+					ParentStructureMatcher imageMatcher = this.matchingMode == MatchingMode.TREE ? this.buildTree(image)
+							: this.buildShards(image);
+					this.pendingMatchers.add(imageMatcher);
+					this.pendingMatcherEntries += imageMatcher.size();
+				}
+			}
+			this.libraryImagesBuilt++;
+			built = this.libraryImagesBuilt;
+			total = this.libraryImagesTotal;
+			ready = this.isLibraryReady();
+			listener = this.libraryListener;
+			
+			if(ready) {
+				// Everything is folded together now, superseding any merge or rebuild still running
+				if(!this.pendingIndexes.isEmpty()) {
+					this.libraryIndex = ScoreIndex.merge(this.libraryIndex, ScoreIndex.merge(this.pendingIndexes));
+					this.pendingIndexes.clear();
+					this.pendingEntries = 0;
+				}
+				if(folding) {
+					this.foldAllMatchers();
+				}
+				this.notifyAll();
+			} else {
+				// Folding copies everything folded so far, so it waits until the pending images are as
+				// large, which keeps the build linearithmic, and runs on this thread outside the lock
+				if(!this.mergingIndexes && !this.pendingIndexes.isEmpty() && this.pendingEntries >= this.libraryIndex.size()) {
+					this.mergingIndexes = true;
+					mergeBase = this.libraryIndex;
+					mergeBatch = new ArrayList<ScoreIndex>(this.pendingIndexes);
+				}
+				if(folding && !this.rebuildingMatcher && this.pendingMatcherEntries >= this.foldedMatcher.size()) {
+					this.rebuildingMatcher = true;
+					rebuildLibrary = new HashMap<String, ParentStructureTable>(this.library);
+					rebuildMode = this.matchingMode;
+					rebuildGeneration = this.matcherGeneration;
+					rebuildCount = this.pendingMatchers.size();
+				}
+			}
+			this.applyLibraryMatcher();
+		}
 		
-		return parentPoints;
+		if(mergeBatch != null) {
+			mergePendingIndexes(mergeBase, mergeBatch);
+		}
+		if(rebuildLibrary != null) {
+			rebuildFoldedMatcher(rebuildLibrary, rebuildMode, rebuildGeneration, rebuildCount);
+		}
+		if(listener != null) {
+			listener.onLibraryProgress(built, total);
+		}
+		if(ready) {
+			this.sourcePixels.closeSpill();
+			this.libraryCache.save(this.libraryFiles, WEIGHTINGS, this.lowestLevel, this.highestLevel,
+					this.library, this.libraryDimensions, this.libraryIndex, this.sourcePixels);
+			if(listener != null) {
+				listener.onLibraryReady();
+			}
+		}
 	}
-
-	private List<Mat> getGaussianPyramid(Mat current, int heightBeginning, int heightEnd) {
-		List<Mat> gaussianPyramid = new ArrayList<Mat>();
-		if(!current.empty()) {
-			Mat dst = new Mat();
-			for(int j=0; j < heightEnd; j++) {
-				Imgproc.pyrDown(current, dst, new Size( current.cols()/2, current.rows()/2 ));
-				if(j >= heightBeginning) {
-					gaussianPyramid.add(dst.clone());
+	
+	// Merges a batch of the pending indexes into the library index, unless the library was finished meanwhile
+	private void mergePendingIndexes(ScoreIndex base, List<ScoreIndex> batch) {
+		ScoreIndex merged = null;
+		try {
+			merged = ScoreIndex.merge(base, ScoreIndex.merge(batch));
+		} finally {
+			synchronized(this) {
+				this.mergingIndexes = false;
+				if(merged != null && this.libraryIndex == base) {
+					this.libraryIndex = merged;
+					this.pendingIndexes.subList(0, batch.size()).clear();
+					this.pendingEntries -= merged.size()-base.size();
+					this.applyLibraryMatcher();
 				}
-				current = dst.clone();
 			}
 		}
-		return gaussianPyramid;
 	}
-
-	/**
-	 * A function to find the laplacian pyramid element at layer l
-	 * 
-	 * @return 
-	 */
-	private Mat getLaplacian(Mat img, int l) {
-	    if(img.empty()||img==null) {
-	    	Log.i("getLaplacian Error","Empty input @img");
-	    }
-	    
-		Mat currImg = img.clone();
-	    if(l==0) {
-	    	return img;
-	    } else {
-	    	img.release();
-	    }
-		
-	    int i = 0;
-
-	    Mat lap = new Mat();
-	    
-	    while(i < l) {
-	        Mat down = new Mat(), up = new Mat();
-	        
-	        if(currImg.cols()%2!=0) {
-	        	if(currImg.rows()%2!=0) {
-	        		Imgproc.pyrDown(currImg, down, new Size( currImg.cols()/2, currImg.rows()/2 ));
-			        Imgproc.pyrUp(down,up, new Size( (down.cols()*2+1), (down.rows()*2+1)));
-		        } else {
-		        	Imgproc.pyrDown(currImg, down, new Size( currImg.cols()/2, currImg.rows()/2 ));
-		        	Imgproc.pyrUp(down,up, new Size( (down.cols()*2+1), down.rows()*2));
-		        }
-	        } else if(currImg.rows()%2!=0) {
-	        	Imgproc.pyrDown(currImg, down, new Size( currImg.cols()/2, currImg.rows()/2 ));
-	        	Imgproc.pyrUp(down,up, new Size( down.cols()*2, (down.rows()*2+1)));
-	        } else {
-	        	Imgproc.pyrDown(currImg, down, new Size( currImg.cols()/2, currImg.rows()/2 ));
-		        Imgproc.pyrUp(down,up, new Size( down.cols()*2, down.rows()*2 ));
-	        }
-
-	        Core.subtract(currImg,up,lap);
-	        currImg = down.clone();
-	        down.release();
-	        up.release();
-	        i++;
-	    }
-	    
-	    currImg.release();
-	    return lap;
-	}	
+	
+	// Rebuilds the folded tree or shards over a snapshot of the library, which takes in the first
+	// count pending matchers, unless the mode changed or everything was folded meanwhile
+	private void rebuildFoldedMatcher(Map<String, ParentStructureTable> snapshot, MatchingMode mode, int generation,
+			int count) {
+		ParentStructureMatcher rebuilt = null;
+		try {
+			rebuilt = mode == MatchingMode.TREE ? this.buildTree(snapshot) : this.buildShards(snapshot);
+		} finally {
+			synchronized(this) {
+				this.rebuildingMatcher = false;
+				if(rebuilt != null && this.matcherGeneration == generation) {
+					this.foldedMatcher = rebuilt;
+					List<ParentStructureMatcher> folded = this.pendingMatchers.subList(0, count);
+					for(ParentStructureMatcher matcher : folded) {
+						this.pendingMatcherEntries -= matcher.size();
+					}
+					folded.clear();
+					this.applyLibraryMatcher();
+				}
+			}
+		}
+	}
+	
 	/**
-	 * A function to simply read in the high-res images as mats and store them
+	 * A function to extract the parent structure of every pixel at height @level
+	 * into new table rows, from levels that have already been read out of their Mats.
 	 * 
-	 * @return
+	 * @param featureLevels
+	 * 				The feature levels from the lowest height upwards
+	 * @param level
+	 * 				The height whose pixels become rows
+	 * @param table
+	 * 				The table the rows are added to
 	 */
-	private Map<String, Mat> readInImages(File directory, Map<String,Mat> result) {
-		
-		if(directory.exists()) {
-			File[] images = directory.listFiles();
-			
-			for(int i = 0; i < images.length; i++) {
-				File image = images[i];
-				if(image.isDirectory()) {
-					readInImages(image,result);
-				} else{
-					if(image.getAbsolutePath().contains("svg")) {
-						Mat readImage = Highgui.imread(image.getAbsolutePath());
-						if((!readImage.empty())&&(readImage!=null)) {
-							result.put(image.getName(),Highgui.imread(image.getAbsolutePath()));
-							Log.i("readInImages", "Added image: " + image.getAbsolutePath());
-						}
-						readImage.release();
-					}
+	void extractStructures(FeatureLevel[] featureLevels, int level, ParentStructureTable table) {
+		// Use the derivatives as a position reference for each height level in the pyramid
+		FeatureLevel current = featureLevels[level-this.lowestLevel];
+		// The top level has no parent, which is left as zeros
+		FeatureLevel parent = level-this.lowestLevel+1 < featureLevels.length ? featureLevels[level-this.lowestLevel+1] : null;
+		for(int k = 0; k < current.getHeight(); k++) {
+			for(int l = 0; l < current.getWidth(); l++) {
+				int row = table.add(level, l, k);
+				current.write(l, k, table, row, false);
+				if(parent != null) {
+					// An odd sized level has one more row or column than twice its parent
+					parent.write(Math.min(l/2, parent.getWidth()-1), Math.min(k/2, parent.getHeight()-1), table, row, true);
 				}
 			}
 		}
-		return result;
 	}
 
 	public boolean ishOnTouch() {
@@ -0,0 +1,160 @@
+package com.main.hallucinationthesis;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opencv.core.Mat;
+
+/**
+ * Runs hallucination jobs on a dedicated background thread so that the
+ * camera callback only has to copy the touched region and hand it over.
+ *
+ * At most one job runs and one waits at any time. Submitting a new job
+ * cancels the previous one, interrupting it if it has already started,
+ * since only the most recent touch is of interest. A job cancelled before it
+ * starts releases its region all the same.
+ */
+public class HallucinationWorker {
+
+	private static final String TAG = "HallucinationThesis::HallucinationWorker";
+
+	/**
+	 * Receives the outcome of a job, on the worker thread. The result is handed
+	 * over to the listener, which is responsible for releasing it; the job's
+	 * future returns the same Mat, so it must not be used once the listener is done.
+	 */
+	public interface Listener {
+		void onHallucinated(Mat result);
+		void onFailed(Exception e);
+	}
+
+	private final HallucinationProcessor processor;
+	private final ThreadPoolExecutor executor;
+	private Future<Mat> currentJob;
+
+	/**
+	 * @param processor
+	 * 				The processor the jobs are run on
+	 * @throws NullPointerException
+	 * 				If the processor is null
+	 */
+	public HallucinationWorker(HallucinationProcessor processor) {
+		if(processor==null) {
+			throw new NullPointerException("Processor cannot be null");
+		}
+		this.processor = processor;
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "HallucinationWorker");
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queues a hallucination of the given region, cancelling any earlier job.
+	 *
+	 * @param region
+	 * 				A copy of the touched region, owned and released by the job
+	 * @param scale
+	 * 				The magnification factor
+	 * @param noTimes
+	 * 				The number used to name the saved images
+	 * @param listener
+	 * 				Told of the result, or null if only the future is wanted
+	 * @return The pending result, owned by the listener if there is one and by the caller otherwise
+	 */
+	public Future<Mat> submit(Mat region, int scale, int noTimes, Listener listener) {
+		return submit(region, false, scale, noTimes, listener);
+	}
+
+	/**
+	 * Queues a tiled hallucination of a whole frame, cancelling any earlier job.
+	 *
+	 * @param frame
+	 * 				A copy of the frame, owned and released by the job
+	 * @see #submit(Mat, int, int, Listener)
+	 */
+	public Future<Mat> submitFrame(Mat frame, int scale, int noTimes, Listener listener) {
+		return submit(frame, true, scale, noTimes, listener);
+	}
+
+	private synchronized Future<Mat> submit(final Mat region, final boolean fullFrame, final int scale,
+			final int noTimes, final Listener listener) {
+		cancel();
+
+		final AtomicBoolean claimed = new AtomicBoolean();
+		FutureTask<Mat> job = new FutureTask<Mat>(new Callable<Mat>() {
+			@Override
+			public Mat call() throws Exception {
+				if(!claimed.compareAndSet(false, true)) {
+					// Cancelled between being taken off the queue and starting, and released already
+					throw new CancellationException("Hallucination " + noTimes + " cancelled");
+				}
+				try {
+					Mat result = fullFrame ? processor.hallucinateFrame(region, scale, noTimes)
+							: processor.hallucinateRegion(region, scale, noTimes);
+					if(listener != null) {
+						listener.onHallucinated(result);
+					}
+					return result;
+				} catch (CancellationException e) {
+					HallucinationLog.i(TAG, "Hallucination " + noTimes + " cancelled");
+					throw e;
+				} catch (Exception e) {
+					if(listener != null) {
+						listener.onFailed(e);
+					}
+					throw e;
+				} finally {
+					region.release();
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				// A job purged from the queue never runs, so its region is released here instead
+				if(isCancelled() && claimed.compareAndSet(false, true)) {
+					region.release();
+				}
+			}
+		};
+		this.executor.execute(job);
+		this.currentJob = job;
+		return job;
+	}
+
+	/**
+	 * Cancels the current job, if there is one.
+	 */
+	public synchronized void cancel() {
+		if(this.currentJob != null) {
+			this.currentJob.cancel(true);
+			this.currentJob = null;
+		}
+		// Drop the cancelled job from the queue so that it does not hold the only slot
+		this.executor.purge();
+	}
+
+	public synchronized boolean isBusy() {
+		return this.currentJob != null && !this.currentJob.isDone();
+	}
+
+	/**
+	 * Cancels the current job and stops the worker thread.
+	 */
+	public synchronized void shutdown() {
+		cancel();
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,226 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The Gaussian and Laplacian pyramids of one image, built once and shared.
+ *
+ * Level 0 is the image itself and each Gaussian level is the one below it
+ * reduced by pyrDown, rounding odd sizes down. Laplacian level n is Gaussian
+ * level n less Gaussian level n+1 expanded back to its size. Levels are only
+ * built when first asked for, each from the level below it, so a caller that
+ * needs the top few levels pays for one reduction per level and nothing else.
+ *
+ * A pyramid can also start part way up, from an image that is already a
+ * Gaussian level of one never formed, such as a vector source drawn straight
+ * at that level's size. Levels keep their numbers from the full pyramid, and
+ * those below the image cannot be asked for.
+ *
+ * A pyramid can also be stacked on the pyramid of an image half its size,
+ * such as the one a 2x magnification started from, in which case every level
+ * above the image is taken from that pyramid rather than reduced again. Only
+ * the image and its own Laplacian level are new, so each further 2x stage
+ * costs one level instead of a whole pyramid.
+ *
+ * The pyramid owns every level it builds, which stay valid until release
+ * gives them back to the pool. The image itself, and any pyramid it is
+ * stacked on, are left to the caller. Not thread safe.
+ */
+public class ImagePyramid {
+
+	private Mat image;
+	private MatPool pool;
+
+	// The level the image is, 0 unless the pyramid starts part way up
+	private int baseLevel;
+
+	// The pyramid whose level n is level n+1 of this one, or null if this one reduces its own levels
+	private ImagePyramid reduced;
+
+	// Gaussian level n at index n, starting with the image itself
+	private List<Mat> gaussian;
+
+	// Laplacian level n at index n, null until it is first asked for
+	private List<Mat> laplacian;
+
+	/**
+	 * @param image
+	 * 				Level 0 of the pyramid, which must outlive it
+	 * @param pool
+	 * 				The pool the levels are borrowed from
+	 * @throws NullPointerException
+	 * 				If the image or pool is null
+	 */
+	public ImagePyramid(Mat image, MatPool pool) {
+		if(image==null) {
+			throw new NullPointerException("Image cannot be null");
+		}
+		if(pool==null) {
+			throw new NullPointerException("Pool cannot be null");
+		}
+		this.image = image;
+		this.pool = pool;
+		this.gaussian = new ArrayList<Mat>();
+		this.gaussian.add(image);
+		this.laplacian = new ArrayList<Mat>();
+	}
+
+	/**
+	 * Starts a pyramid part way up, from an image at the given level.
+	 *
+	 * @param image
+	 * 				Gaussian level baseLevel of the pyramid, which must outlive it
+	 * @param baseLevel
+	 * 				The number of reductions the image stands in for
+	 * @param pool
+	 * 				The pool the levels are borrowed from
+	 * @throws NullPointerException
+	 * 				If the image or pool is null
+	 * @throws IllegalArgumentException
+	 * 				If the base level is negative
+	 */
+	public ImagePyramid(Mat image, int baseLevel, MatPool pool) {
+		this(image, pool);
+		if(baseLevel<0) {
+			throw new IllegalArgumentException("Base level cannot be negative");
+		}
+		this.baseLevel = baseLevel;
+	}
+
+	/**
+	 * Stacks a pyramid on the pyramid of the image it was magnified 2x from, taking
+	 * every level above the image from there.
+	 *
+	 * @param image
+	 * 				Level 0 of the pyramid, which must outlive it
+	 * @param reduced
+	 * 				The pyramid of an image exactly half the size, which must outlive this one
+	 * @throws NullPointerException
+	 * 				If the image or reduced pyramid is null
+	 * @throws IllegalArgumentException
+	 * 				If the reduced pyramid's image is not half the size of the image
+	 */
+	public ImagePyramid(Mat image, ImagePyramid reduced) {
+		this(image, poolOf(reduced));
+		if(reduced.image.cols() != image.cols()/2 || reduced.image.rows() != image.rows()/2) {
+			throw new IllegalArgumentException("Reduced pyramid must be half the size of the image");
+		}
+		this.reduced = reduced;
+	}
+
+	private static MatPool poolOf(ImagePyramid reduced) {
+		if(reduced==null) {
+			throw new NullPointerException("Reduced pyramid cannot be null");
+		}
+		return reduced.pool;
+	}
+
+	/**
+	 * @param level
+	 * 				The number of reductions from the image
+	 * @return The Gaussian level, owned by the pyramid
+	 * @throws IllegalArgumentException
+	 * 				If the level is below the image
+	 */
+	public Mat getGaussian(int level) {
+		checkLevel(level);
+		return gaussianAt(level-this.baseLevel);
+	}
+
+	// Gaussian level n counted from the image
+	private Mat gaussianAt(int level) {
+		if(level>0 && this.reduced != null) {
+			return this.reduced.getGaussian(level-1);
+		}
+		while(this.gaussian.size() <= level) {
+			Mat below = this.gaussian.get(this.gaussian.size()-1);
+			Size size = new Size(below.cols()/2, below.rows()/2);
+			Mat reduced = this.pool.borrow(size, below.type());
+			Imgproc.pyrDown(below, reduced, size);
+			this.gaussian.add(reduced);
+		}
+		return this.gaussian.get(level);
+	}
+
+	/**
+	 * @param level
+	 * 				The number of reductions from the image
+	 * @return The Laplacian level, the same size and type as the Gaussian level and owned by the pyramid
+	 * @throws IllegalArgumentException
+	 * 				If the level is below the image
+	 */
+	public Mat getLaplacian(int level) {
+		checkLevel(level);
+		return laplacianAt(level-this.baseLevel);
+	}
+
+	// Laplacian level n counted from the image
+	private Mat laplacianAt(int level) {
+		if(level>0 && this.reduced != null) {
+			return this.reduced.getLaplacian(level-1);
+		}
+		while(this.laplacian.size() <= level) {
+			this.laplacian.add(null);
+		}
+		Mat result = this.laplacian.get(level);
+		if(result == null) {
+			Mat current = this.gaussianAt(level);
+			Mat reduced = this.gaussianAt(level+1);
+			// Expand to the exact size of this level, which is odd when it was rounded down
+			Mat expanded = this.pool.borrow(current.size(), current.type());
+			Imgproc.pyrUp(reduced, expanded, current.size());
+			result = this.pool.borrow(current.size(), current.type());
+			Core.subtract(current, expanded, result);
+			this.pool.giveBack(expanded);
+			this.laplacian.set(level, result);
+		}
+		return result;
+	}
+
+	private void checkLevel(int level) {
+		if(level<this.baseLevel) {
+			throw new IllegalArgumentException(this.baseLevel == 0 ? "Level cannot be negative"
+					: "Levels below " + this.baseLevel + " were never formed");
+		}
+	}
+
+	/**
+	 * Gives every level the pyramid built back to the pool, leaving the image itself,
+	 * and the levels of any pyramid it is stacked on, alone.
+	 */
+	public void release() {
+		for(int level=1; level<this.gaussian.size(); level++) {
+			this.pool.giveBack(this.gaussian.get(level));
+		}
+		for(Mat level : this.laplacian) {
+			this.pool.giveBack(level);
+		}
+		this.gaussian.clear();
+		this.gaussian.add(this.image);
+		this.laplacian.clear();
+	}
+
+	public Mat getImage() {
+		return image;
+	}
+
+	/**
+	 * @return The level the image is, 0 unless the pyramid starts part way up
+	 */
+	public int getBaseLevel() {
+		return baseLevel;
+	}
+
+	/**
+	 * @return The pyramid this one is stacked on, or null if it reduces its own levels
+	 */
+	public ImagePyramid getReduced() {
+		return reduced;
+	}
+}
@@ -0,0 +1,27 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+
+import org.opencv.core.Mat;
+
+/**
+ * Reads the library images and writes out the images a hallucination produces,
+ * so that the processor does not need to know where either of them live.
+ */
+public interface ImageStore {
+
+	/**
+	 * @param file
+	 * 				The image to read, as found by a LibrarySource
+	 * @return The decoded image in BGR order, empty if it could not be read
+	 */
+	Mat read(File file);
+
+	/**
+	 * @param name
+	 * 				The name of the image, without an extension
+	 * @param image
+	 * 				The image to write, RGBA as from the camera or BGR as from the library; not released
+	 */
+	void write(String name, Mat image);
+}
@@ -0,0 +1,475 @@
+package com.main.hallucinationthesis;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A k-d tree over the packed feature vectors of every parent structure
+ * in the high-res library, built once and then queried for nearest neighbours
+ * under the weighted L^2 distance.
+ *
+ * Each leaf holds its vectors contiguously, so that a search compares the
+ * query against a whole leaf in one call to FeatureDistance.
+ *
+ * Searches are exact by default. Setting an epsilon makes them (1+epsilon)
+ * approximate, and a check limit bounds the number of library vectors compared
+ * per query, so accuracy can be traded against latency per device.
+ */
+public class KdTreeMatcher implements ParentStructureMatcher {
+
+	private static final int DIMENSIONS = ParentStructure.FEATURE_LENGTH;
+
+	// The library image names, indexed by the values in imageIds
+	private String[] imageNames;
+
+	// The packed feature vectors, reordered so that every leaf is contiguous
+	private float[] vectors;
+
+	// The most vectors in any one leaf, which may be more than the leaf size when they cannot be split
+	private int largestLeaf;
+
+	// The library image, pyramid height and pixel position of each vector, in the same order
+	private int[] imageIds;
+	private byte[] levels;
+	private int[] pixelX;
+	private int[] pixelY;
+
+	// The tree nodes. A node with a negative split dimension is a leaf
+	// covering the vectors from nodeStart up to nodeEnd
+	private int[] splitDimension;
+	private float[] splitValue;
+	private int[] lowChild;
+	private int[] highChild;
+	private int[] nodeStart;
+	private int[] nodeEnd;
+	private int nodeCount;
+
+	private int leafSize;
+
+	// Allow the search to stop short of the true nearest neighbour by this relative amount
+	private double epsilon;
+
+	// The maximum number of vectors compared per query, or 0 for no limit
+	private int maxChecks;
+
+	/**
+	 * Builds the tree over the deconstructed library.
+	 *
+	 * @param library
+	 * 				The mapping from image name to its table of parent structures
+	 * @param leafSize
+	 * 				The maximum number of vectors held in one leaf
+	 * @throws NullPointerException
+	 * 				If the library is null
+	 * @throws IllegalArgumentException
+	 * 				If the leaf size is less than 1
+	 */
+	public KdTreeMatcher(Map<String, ParentStructureTable> library, int leafSize) {
+		if(library==null) {
+			throw new NullPointerException("Library cannot be null");
+		}
+		if(leafSize < 1) {
+			throw new IllegalArgumentException("Leaf size must be at least 1");
+		}
+		this.leafSize = leafSize;
+
+		int size = 0;
+		for(ParentStructureTable structures : library.values()) {
+			size += structures.size();
+		}
+
+		// Pack every structure in library order first
+		this.imageNames = new String[library.size()];
+		float[] packed = new float[size*DIMENSIONS];
+		int[] packedImageIds = new int[size];
+		byte[] packedLevels = new byte[size];
+		int[] packedX = new int[size];
+		int[] packedY = new int[size];
+
+		int imageId = 0;
+		int entry = 0;
+		for(Map.Entry<String, ParentStructureTable> image : library.entrySet()) {
+			this.imageNames[imageId] = image.getKey();
+			ParentStructureTable structures = image.getValue();
+			for(int j=0; j<structures.size(); j++) {
+				structures.packFeatures(j, packed, entry*DIMENSIONS);
+				packedImageIds[entry] = imageId;
+				packedLevels[entry] = (byte)structures.getPyramidHeight(j);
+				packedX[entry] = structures.getPixelX(j);
+				packedY[entry] = structures.getPixelY(j);
+				entry++;
+			}
+			imageId++;
+		}
+
+		int[] order = new int[size];
+		for(int i=0; i<size; i++) {
+			order[i] = i;
+		}
+
+		int capacity = 2*(size/leafSize)+1;
+		this.splitDimension = new int[capacity];
+		this.splitValue = new float[capacity];
+		this.lowChild = new int[capacity];
+		this.highChild = new int[capacity];
+		this.nodeStart = new int[capacity];
+		this.nodeEnd = new int[capacity];
+		this.nodeCount = 0;
+		build(packed, order, 0, size);
+
+		// Each search holds the distances to one leaf at a time
+		for(int node=0; node<this.nodeCount; node++) {
+			if(this.splitDimension[node] < 0) {
+				this.largestLeaf = Math.max(this.largestLeaf, this.nodeEnd[node]-this.nodeStart[node]);
+			}
+		}
+
+		// Lay the vectors out in leaf order so that each leaf is scanned sequentially
+		this.vectors = new float[size*DIMENSIONS];
+		this.imageIds = new int[size];
+		this.levels = new byte[size];
+		this.pixelX = new int[size];
+		this.pixelY = new int[size];
+		for(int i=0; i<size; i++) {
+			int from = order[i];
+			System.arraycopy(packed, from*DIMENSIONS, this.vectors, i*DIMENSIONS, DIMENSIONS);
+			this.imageIds[i] = packedImageIds[from];
+			this.levels[i] = packedLevels[from];
+			this.pixelX[i] = packedX[from];
+			this.pixelY[i] = packedY[from];
+		}
+	}
+
+	// Recursively split the range on the dimension of widest spread, at its median
+	private int build(float[] packed, int[] order, int start, int end) {
+		int node = newNode();
+		this.nodeStart[node] = start;
+		this.nodeEnd[node] = end;
+		this.splitDimension[node] = -1;
+
+		if(end-start <= this.leafSize) {
+			return node;
+		}
+
+		int dimension = 0;
+		float widest = 0;
+		for(int d=0; d<DIMENSIONS; d++) {
+			float min = Float.MAX_VALUE;
+			float max = -Float.MAX_VALUE;
+			for(int i=start; i<end; i++) {
+				float value = packed[order[i]*DIMENSIONS+d];
+				if(value < min) {
+					min = value;
+				}
+				if(value > max) {
+					max = value;
+				}
+			}
+			if(max-min > widest) {
+				widest = max-min;
+				dimension = d;
+			}
+		}
+
+		// Every vector in the range is identical, so it cannot be split
+		if(widest == 0) {
+			return node;
+		}
+
+		int middle = (start+end) >>> 1;
+		select(packed, order, dimension, start, end-1, middle);
+		this.splitDimension[node] = dimension;
+		this.splitValue[node] = packed[order[middle]*DIMENSIONS+dimension];
+
+		// The node arrays may be reallocated while building the children
+		int low = build(packed, order, start, middle);
+		int high = build(packed, order, middle, end);
+		this.lowChild[node] = low;
+		this.highChild[node] = high;
+		return node;
+	}
+
+	private int newNode() {
+		if(this.nodeCount == this.splitDimension.length) {
+			int capacity = 2*this.nodeCount+1;
+			this.splitDimension = Arrays.copyOf(this.splitDimension, capacity);
+			this.splitValue = Arrays.copyOf(this.splitValue, capacity);
+			this.lowChild = Arrays.copyOf(this.lowChild, capacity);
+			this.highChild = Arrays.copyOf(this.highChild, capacity);
+			this.nodeStart = Arrays.copyOf(this.nodeStart, capacity);
+			this.nodeEnd = Arrays.copyOf(this.nodeEnd, capacity);
+		}
+		return this.nodeCount++;
+	}
+
+	// Quickselect so that order[k] holds the k-th smallest value in the dimension,
+	// with no larger values before it and no smaller values after it
+	private static void select(float[] packed, int[] order, int dimension, int low, int high, int k) {
+		while(low < high) {
+			float pivot = packed[order[(low+high) >>> 1]*DIMENSIONS+dimension];
+			int i = low;
+			int j = high;
+			while(i <= j) {
+				while(packed[order[i]*DIMENSIONS+dimension] < pivot) {
+					i++;
+				}
+				while(packed[order[j]*DIMENSIONS+dimension] > pivot) {
+					j--;
+				}
+				if(i <= j) {
+					int swap = order[i];
+					order[i] = order[j];
+					order[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j) {
+				high = j;
+			} else if(k >= i) {
+				low = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int findMatch(float[] query, int offset, double threshold) {
+		Search search = new Search(1, this.largestLeaf);
+		search(0, query, offset, search);
+		if(search.count == 0 || Math.sqrt(search.distances[0]) >= threshold) {
+			return -1;
+		}
+		return search.entries[0];
+	}
+
+	@Override
+	public int findNearest(float[] query, int offset, int k, int[] result) {
+		if(k < 1) {
+			return 0;
+		}
+		Search search = new Search(k, this.largestLeaf);
+		search(0, query, offset, search);
+		return search.drainInto(result);
+	}
+
+	@Override
+	public int findWithin(float[] query, int offset, int level, double threshold, SearchPolicy.Search policySearch, int[] result) {
+		// Each thread reuses its own heap and leaf buffer from one query to the next
+		Search search = (Search)policySearch.getScratch(this);
+		if(search == null) {
+			search = new Search(policySearch.getMaxResults(), this.largestLeaf);
+			policySearch.putScratch(this, search);
+		}
+		search.reset();
+		search.policySearch = policySearch;
+		if(policySearch.isFirstOnly()) {
+			search.firstWithin = (float)(threshold*threshold);
+		}
+		search(0, query, offset, search);
+		policySearch.countCandidates(search.checks);
+		if(search.cutShort) {
+			policySearch.markCutShort();
+		}
+
+		// Keep only the entries within the threshold, which are the nearest ones
+		int found = search.drainInto(result);
+		while(found > 0 && getDistance(query, offset, result[found-1]) >= threshold) {
+			found--;
+		}
+		return found;
+	}
+
+	private void search(int node, float[] query, int offset, Search search) {
+		if(search.exhausted) {
+			return;
+		}
+
+		int dimension = this.splitDimension[node];
+		if(dimension < 0) {
+			// Out of time, settle for the leaves already searched, of which there is at least one
+			if(search.checks > 0 && search.policySearch != null && search.policySearch.isExpired()) {
+				search.exhausted = true;
+				search.cutShort = true;
+				return;
+			}
+			int start = this.nodeStart[node];
+			int count = this.nodeEnd[node]-start;
+			int compared = this.maxChecks > 0 ? Math.min(count, this.maxChecks-search.checks) : count;
+			FeatureDistance.squaredDistances(query, offset, this.vectors, start*DIMENSIONS, compared, search.leafDistances);
+			for(int j=0; j<count; j++) {
+				if(this.maxChecks > 0 && search.checks >= this.maxChecks) {
+					search.exhausted = true;
+					return;
+				}
+				float distance = search.leafDistances[j];
+				search.offer(start+j, distance);
+				search.checks++;
+				if(distance < search.firstWithin) {
+					search.exhausted = true;
+					return;
+				}
+			}
+			return;
+		}
+
+		float difference = query[offset+dimension]-this.splitValue[node];
+		int near = difference < 0 ? this.lowChild[node] : this.highChild[node];
+		int far = difference < 0 ? this.highChild[node] : this.lowChild[node];
+
+		search(near, query, offset, search);
+
+		// Only cross the splitting plane if it is closer than the worst neighbour kept
+		double planeDistance = (double)difference*difference*(1+this.epsilon)*(1+this.epsilon);
+		if(!search.isFull() || planeDistance < search.worst()) {
+			search(far, query, offset, search);
+		}
+	}
+
+	@Override
+	public double getDistance(float[] query, int offset, int entry) {
+		return Math.sqrt(FeatureDistance.squaredDistance(query, offset, this.vectors, entry*DIMENSIONS));
+	}
+
+	/**
+	 * The state of one query: a bounded max-heap of the nearest entries so far.
+	 */
+	private static final class Search {
+		private final float[] distances;
+		private final int[] entries;
+		private int count;
+		private int checks;
+		private boolean exhausted;
+
+		// Stop at the first entry nearer than this squared distance, if any
+		private float firstWithin = -1;
+
+		// The policy's search this one is made for, or null for a plain one
+		private SearchPolicy.Search policySearch;
+		private boolean cutShort;
+
+		// The distances to every vector of the leaf being searched
+		private final float[] leafDistances;
+
+		Search(int k, int largestLeaf) {
+			this.distances = new float[k];
+			this.entries = new int[k];
+			this.leafDistances = new float[largestLeaf];
+		}
+
+		// Clears the state of the last query, keeping the buffers
+		void reset() {
+			this.count = 0;
+			this.checks = 0;
+			this.exhausted = false;
+			this.firstWithin = -1;
+			this.cutShort = false;
+		}
+
+		boolean isFull() {
+			return this.count == this.entries.length;
+		}
+
+		float worst() {
+			return this.distances[0];
+		}
+
+		void offer(int entry, float distance) {
+			if(!isFull()) {
+				// Sift the new entry up from the bottom
+				int child = this.count++;
+				while(child > 0) {
+					int parent = (child-1) >>> 1;
+					if(this.distances[parent] >= distance) {
+						break;
+					}
+					this.distances[child] = this.distances[parent];
+					this.entries[child] = this.entries[parent];
+					child = parent;
+				}
+				this.distances[child] = distance;
+				this.entries[child] = entry;
+			} else if(distance < this.distances[0]) {
+				siftDown(entry, distance, this.count);
+			}
+		}
+
+		// Place the entry at the root and sift it down within the first size elements
+		private void siftDown(int entry, float distance, int size) {
+			int parent = 0;
+			while(true) {
+				int child = 2*parent+1;
+				if(child >= size) {
+					break;
+				}
+				if(child+1 < size && this.distances[child+1] > this.distances[child]) {
+					child++;
+				}
+				if(this.distances[child] <= distance) {
+					break;
+				}
+				this.distances[parent] = this.distances[child];
+				this.entries[parent] = this.entries[child];
+				parent = child;
+			}
+			this.distances[parent] = distance;
+			this.entries[parent] = entry;
+		}
+
+		// Empty the heap into the result, nearest first
+		int drainInto(int[] result) {
+			int found = this.count;
+			for(int size = this.count; size > 0; size--) {
+				result[size-1] = this.entries[0];
+				siftDown(this.entries[size-1], this.distances[size-1], size-1);
+			}
+			this.count = 0;
+			return found;
+		}
+	}
+
+	@Override
+	public int size() {
+		return imageIds.length;
+	}
+
+	@Override
+	public String getImageName(int entry) {
+		return imageNames[imageIds[entry]];
+	}
+
+	@Override
+	public int getPyramidHeight(int entry) {
+		return levels[entry];
+	}
+
+	@Override
+	public int getPixelX(int entry) {
+		return pixelX[entry];
+	}
+
+	@Override
+	public int getPixelY(int entry) {
+		return pixelY[entry];
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public void setEpsilon(double epsilon) {
+		if(epsilon < 0) {
+			throw new IllegalArgumentException("Epsilon cannot be negative");
+		}
+		this.epsilon = epsilon;
+	}
+
+	public int getMaxChecks() {
+		return maxChecks;
+	}
+
+	public void setMaxChecks(int maxChecks) {
+		this.maxChecks = maxChecks;
+	}
+}
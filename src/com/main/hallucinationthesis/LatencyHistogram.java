@@ -0,0 +1,130 @@
+package com.main.hallucinationthesis;
+
+import java.util.Locale;
+
+/**
+ * A histogram of latencies in nanoseconds, bucketed as HdrHistogram does:
+ * every power of two is split into SUB_BUCKETS equal buckets, so that any
+ * value is recorded to within 1/SUB_BUCKETS of itself from nanoseconds up to
+ * centuries, in a fixed array of under a thousand counts and without ever
+ * allocating. Percentiles are reported as the highest value of their bucket.
+ * Thread safe.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Values below SUB_BUCKETS are counted exactly, then SUB_BUCKETS buckets for each power of two above
+	private static final int BUCKETS = (64-SUB_BUCKET_BITS+1)*SUB_BUCKETS;
+
+	private final long[] counts;
+	private long count;
+	private long total;
+	private long min;
+	private long max;
+
+	public LatencyHistogram() {
+		this.counts = new long[BUCKETS];
+		this.min = Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param nanos
+	 * 				The latency to count, where negative latencies count as 0
+	 */
+	public synchronized void record(long nanos) {
+		long value = Math.max(0, nanos);
+		this.counts[bucketOf(value)]++;
+		this.count++;
+		this.total += value;
+		this.min = Math.min(this.min, value);
+		this.max = Math.max(this.max, value);
+	}
+
+	public synchronized void reset() {
+		for(int b=0; b<BUCKETS; b++) {
+			this.counts[b] = 0;
+		}
+		this.count = 0;
+		this.total = 0;
+		this.min = Long.MAX_VALUE;
+		this.max = 0;
+	}
+
+	/**
+	 * @return An independent copy of the histogram as it is now
+	 */
+	public synchronized LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		System.arraycopy(this.counts, 0, copy.counts, 0, BUCKETS);
+		copy.count = this.count;
+		copy.total = this.total;
+		copy.min = this.min;
+		copy.max = this.max;
+		return copy;
+	}
+
+	/**
+	 * @param percentile
+	 * 				From 0 to 100
+	 * @return The latency that the given percentage of those recorded were at or below, or 0 if there are none
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if(this.count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile))/100*this.count));
+		long seen = 0;
+		for(int b=0; b<BUCKETS; b++) {
+			seen += this.counts[b];
+			if(seen >= rank) {
+				return Math.min(highestInBucket(b), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized double getMean() {
+		return count == 0 ? 0 : (double)total/count;
+	}
+
+	public synchronized long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	static int bucketOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift+1)*SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestInBucket(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket/SUB_BUCKETS - 1;
+		long lowest = (long)(SUB_BUCKETS + bucket%SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n=" + count + " mean=" + millis(getMean()) + " p50=" + millis(getValueAtPercentile(50))
+				+ " p99=" + millis(getValueAtPercentile(99)) + " max=" + millis(max) + "ms";
+	}
+
+	private static String millis(double nanos) {
+		return String.format(Locale.US, "%.1f", nanos/1e6);
+	}
+}
@@ -0,0 +1,447 @@
+package com.main.hallucinationthesis;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opencv.core.Size;
+
+/**
+ * A persistent, versioned binary cache of the deconstructed high-res library.
+ *
+ * The cache holds the parent structure table of every library image, the sorted
+ * score index over all of them, the dimensions of each source image and the
+ * high-res pixels its structures reconstruct from. Each
+ * image is recorded with the modification time and length of its source file,
+ * and the whole cache is discarded if any source was added, removed or changed,
+ * or if the weightings or pyramid heights differ. A source that could not be
+ * deconstructed is recorded all the same, with no rows and a size of 0 by 0,
+ * so that it is not taken for an added image and tried again until it changes. Loading maps the columns of
+ * each image and of the score index and copies them out in bulk, so an unchanged library skips
+ * deconstruction entirely. The source pixels are the largest part and are only read a pixel per
+ * match, so they stay mapped instead of being copied. Each section is mapped on its own, at a long
+ * offset, so the file as a whole may grow past what one buffer can address.
+ *
+ * Layout (big-endian):
+ *   int magic, int version, 5 doubles weightings, int lowest height, int highest height, int source level,
+ *   int image count
+ *   per image: name, long modified, long length, int width, int height, int rows,
+ *              then rows*FEATURE_LENGTH floats, rows level bytes, rows x shorts, rows y shorts,
+ *              then int source width, int source height, width*height*3 source pixel bytes
+ *   score index: int image count, names, int entries,
+ *              then entries score doubles, entries image id ints, entries level bytes,
+ *              entries x ints, entries y ints
+ * where a name is an int byte count followed by its UTF-8 bytes.
+ */
+public class LibraryCache {
+
+	private static final String TAG = "LibraryCache";
+
+	private static final int MAGIC = 0x484c4942;
+	private static final int VERSION = 4;
+
+	private static final int FEATURE_LENGTH = ParentStructure.FEATURE_LENGTH;
+
+	private File cacheFile;
+
+	/**
+	 * Reads the cache from front to back, a section at a time, checking
+	 * each against the length of the file before reading or mapping it.
+	 */
+	private static class SectionReader {
+		private final FileChannel channel;
+		private final long length;
+		private long position;
+
+		SectionReader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.length = channel.size();
+		}
+
+		/**
+		 * @return The next few bytes, copied out of the file
+		 */
+		ByteBuffer read(int size) throws IOException {
+			check(size);
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			while(buffer.hasRemaining()) {
+				if(this.channel.read(buffer, this.position + buffer.position()) < 0) {
+					throw new EOFException("Cache ended while reading");
+				}
+			}
+			buffer.flip();
+			this.position += size;
+			return buffer;
+		}
+
+		/**
+		 * @return The next section of the file, mapped
+		 */
+		MappedByteBuffer map(long size) throws IOException {
+			check(size);
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("Cache section of " + size + " bytes is too large to map");
+			}
+			MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, size);
+			this.position += size;
+			return buffer;
+		}
+
+		private void check(long size) throws IOException {
+			if(size < 0 || size > this.length - this.position) {
+				throw new EOFException("Cache is truncated at " + this.position + " of " + this.length + " bytes");
+			}
+		}
+
+		String readName() throws IOException {
+			byte[] bytes = new byte[read(4).getInt()];
+			read(bytes.length).get(bytes);
+			return new String(bytes, "UTF-8");
+		}
+	}
+
+	/**
+	 * The library as read back from the cache.
+	 */
+	public static class Contents {
+		private final Map<String, ParentStructureTable> tables;
+		private final Map<String, Size> dimensions;
+		private final ScoreIndex scoreIndex;
+		private final SourcePixels sourcePixels;
+
+		Contents(Map<String, ParentStructureTable> tables, Map<String, Size> dimensions, ScoreIndex scoreIndex,
+				SourcePixels sourcePixels) {
+			this.tables = tables;
+			this.dimensions = dimensions;
+			this.scoreIndex = scoreIndex;
+			this.sourcePixels = sourcePixels;
+		}
+
+		public Map<String, ParentStructureTable> getTables() {
+			return tables;
+		}
+
+		public Map<String, Size> getDimensions() {
+			return dimensions;
+		}
+
+		public ScoreIndex getScoreIndex() {
+			return scoreIndex;
+		}
+
+		public SourcePixels getSourcePixels() {
+			return sourcePixels;
+		}
+	}
+
+	/**
+	 * @param cacheFile
+	 * 				The file the cache is kept in
+	 * @throws NullPointerException
+	 * 				If the file is null
+	 */
+	public LibraryCache(File cacheFile) {
+		if(cacheFile==null) {
+			throw new NullPointerException("Cache file cannot be null");
+		}
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Loads the cached library if it is still valid for the given sources.
+	 *
+	 * @param sources
+	 * 				The current library source files, keyed by image name
+	 * @param weightings
+	 * 				The weightings the library must have been built with
+	 * @param lowestLevel
+	 * 				The lowest pyramid height the library must have been deconstructed at
+	 * @param highestLevel
+	 * 				The highest pyramid height the library must have been deconstructed at
+	 * @return The cached library, or null if there is no valid cache
+	 */
+	public Contents load(Map<String, File> sources, double[] weightings, int lowestLevel, int highestLevel) {
+		if(!this.cacheFile.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(this.cacheFile, "r");
+			SectionReader reader = new SectionReader(file.getChannel());
+
+			ByteBuffer header = reader.read(4*2 + 8*weightings.length + 4*4);
+			if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+				HallucinationLog.i(TAG, "Cache format is out of date");
+				return null;
+			}
+			double[] cachedWeightings = new double[weightings.length];
+			header.asDoubleBuffer().get(cachedWeightings);
+			skip(header, 8*weightings.length);
+			if(!Arrays.equals(cachedWeightings, weightings)) {
+				HallucinationLog.i(TAG, "Cache was built with different weightings");
+				return null;
+			}
+			if(header.getInt() != lowestLevel || header.getInt() != highestLevel) {
+				HallucinationLog.i(TAG, "Cache was built at different pyramid heights");
+				return null;
+			}
+			int sourceLevel = SourcePixels.levelFor(lowestLevel);
+			if(header.getInt() != sourceLevel) {
+				HallucinationLog.i(TAG, "Cache keeps its source pixels at a different level");
+				return null;
+			}
+
+			int imageCount = header.getInt();
+			if(imageCount != sources.size()) {
+				HallucinationLog.i(TAG, "Library images were added or removed");
+				return null;
+			}
+
+			Map<String, ParentStructureTable> tables = new HashMap<String, ParentStructureTable>();
+			Map<String, Size> dimensions = new HashMap<String, Size>();
+			SourcePixels sourcePixels = new SourcePixels(sourceLevel);
+			for(int i=0; i<imageCount; i++) {
+				String name = reader.readName();
+				ByteBuffer image = reader.read(8*2 + 4*3);
+				long modified = image.getLong();
+				long length = image.getLong();
+				File source = sources.get(name);
+				if(source == null || source.lastModified() != modified || source.length() != length) {
+					HallucinationLog.i(TAG, "Library image changed: " + name);
+					return null;
+				}
+				int width = image.getInt();
+				int height = image.getInt();
+
+				int rows = image.getInt();
+				// The columns, then the source size
+				ByteBuffer columns = reader.map((long)rows*(4*FEATURE_LENGTH + 1 + 2*2) + 4*2);
+				float[] features = new float[rows*FEATURE_LENGTH];
+				columns.asFloatBuffer().get(features);
+				skip(columns, 4*features.length);
+				byte[] levels = new byte[rows];
+				columns.get(levels);
+				short[] pixelX = new short[rows];
+				columns.asShortBuffer().get(pixelX);
+				skip(columns, 2*rows);
+				short[] pixelY = new short[rows];
+				columns.asShortBuffer().get(pixelY);
+				skip(columns, 2*rows);
+
+				int sourceWidth = columns.getInt();
+				int sourceHeight = columns.getInt();
+				ByteBuffer pixels = reader.map((long)sourceWidth*sourceHeight*3);
+				if(width == 0 && height == 0) {
+					// The source failed to deconstruct when the cache was written
+					continue;
+				}
+				dimensions.put(name, new Size(width, height));
+				tables.put(name, new ParentStructureTable(features, levels, pixelX, pixelY, weightings));
+				sourcePixels.put(name, sourceWidth, sourceHeight, pixels);
+			}
+
+			String[] imageNames = new String[reader.read(4).getInt()];
+			for(int i=0; i<imageNames.length; i++) {
+				imageNames[i] = reader.readName();
+			}
+			int entries = reader.read(4).getInt();
+			ByteBuffer index = reader.map((long)entries*(8 + 4 + 1 + 4 + 4));
+			double[] scores = new double[entries];
+			index.asDoubleBuffer().get(scores);
+			skip(index, 8*entries);
+			int[] imageIds = new int[entries];
+			index.asIntBuffer().get(imageIds);
+			skip(index, 4*entries);
+			byte[] levels = new byte[entries];
+			index.get(levels);
+			int[] pixelX = new int[entries];
+			index.asIntBuffer().get(pixelX);
+			skip(index, 4*entries);
+			int[] pixelY = new int[entries];
+			index.asIntBuffer().get(pixelY);
+
+			HallucinationLog.i(TAG, "Loaded " + tables.size() + " images from " + this.cacheFile.getAbsolutePath());
+			return new Contents(tables, dimensions, new ScoreIndex(imageNames, scores, imageIds, levels, pixelX, pixelY),
+					sourcePixels);
+		} catch (IOException e) {
+			HallucinationLog.i(TAG, "Could not read cache: " + e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			// A truncated or corrupt file underflows the buffer
+			HallucinationLog.i(TAG, "Cache is corrupt: " + e.getMessage());
+			return null;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Writes the library to the cache, replacing any previous one.
+	 * The file is written alongside and renamed into place so that a
+	 * partially written cache is never loaded.
+	 *
+	 * @param sources
+	 * 				The library source files, keyed by image name, including any without a table
+	 * @param weightings
+	 * 				The weightings the library was built with
+	 * @param lowestLevel
+	 * 				The lowest pyramid height the library was deconstructed at
+	 * @param highestLevel
+	 * 				The highest pyramid height the library was deconstructed at
+	 * @param tables
+	 * 				The parent structures of each image that was deconstructed
+	 * @param dimensions
+	 * 				The size of each source image
+	 * @param scoreIndex
+	 * 				The sorted score index over every table
+	 * @param sourcePixels
+	 * 				The high-res pixels of every table
+	 * @return Whether the cache was written
+	 */
+	public boolean save(Map<String, File> sources, double[] weightings, int lowestLevel, int highestLevel,
+			Map<String, ParentStructureTable> tables, Map<String, Size> dimensions, ScoreIndex scoreIndex,
+			SourcePixels sourcePixels) {
+		File temporary = new File(this.cacheFile.getAbsolutePath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for(int w=0; w<weightings.length; w++) {
+				out.writeDouble(weightings[w]);
+			}
+			out.writeInt(lowestLevel);
+			out.writeInt(highestLevel);
+			out.writeInt(sourcePixels.getLevel());
+
+			out.writeInt(sources.size());
+			for(Map.Entry<String, File> image : sources.entrySet()) {
+				String name = image.getKey();
+				File source = image.getValue();
+				ParentStructureTable table = tables.get(name);
+
+				writeName(out, name);
+				out.writeLong(source.lastModified());
+				out.writeLong(source.length());
+				if(table == null) {
+					// No rows, no size and no source pixels
+					for(int i=0; i<5; i++) {
+						out.writeInt(0);
+					}
+					continue;
+				}
+				Size size = dimensions.get(name);
+				out.writeInt((int)size.width);
+				out.writeInt((int)size.height);
+
+				int rows = table.size();
+				out.writeInt(rows);
+				float[] features = table.getFeatureColumn();
+				for(int i=0; i<rows*FEATURE_LENGTH; i++) {
+					out.writeFloat(features[i]);
+				}
+				out.write(table.getLevelColumn(), 0, rows);
+				short[] pixelX = table.getPixelXColumn();
+				for(int i=0; i<rows; i++) {
+					out.writeShort(pixelX[i]);
+				}
+				short[] pixelY = table.getPixelYColumn();
+				for(int i=0; i<rows; i++) {
+					out.writeShort(pixelY[i]);
+				}
+
+				SourcePixels.Source kept = sourcePixels.get(name);
+				out.writeInt(kept.width);
+				out.writeInt(kept.height);
+				ByteBuffer pixels = kept.pixels.duplicate();
+				pixels.rewind();
+				byte[] chunk = new byte[Math.min(pixels.remaining(), 1 << 16)];
+				while(pixels.hasRemaining()) {
+					int length = Math.min(chunk.length, pixels.remaining());
+					pixels.get(chunk, 0, length);
+					out.write(chunk, 0, length);
+				}
+			}
+
+			String[] imageNames = scoreIndex.getImageNameColumn();
+			out.writeInt(imageNames.length);
+			for(int i=0; i<imageNames.length; i++) {
+				writeName(out, imageNames[i]);
+			}
+			int entries = scoreIndex.size();
+			out.writeInt(entries);
+			double[] scores = scoreIndex.getScoreColumn();
+			for(int i=0; i<entries; i++) {
+				out.writeDouble(scores[i]);
+			}
+			int[] imageIds = scoreIndex.getImageIdColumn();
+			for(int i=0; i<entries; i++) {
+				out.writeInt(imageIds[i]);
+			}
+			out.write(scoreIndex.getLevelColumn(), 0, entries);
+			int[] pixelX = scoreIndex.getPixelXColumn();
+			for(int i=0; i<entries; i++) {
+				out.writeInt(pixelX[i]);
+			}
+			int[] pixelY = scoreIndex.getPixelYColumn();
+			for(int i=0; i<entries; i++) {
+				out.writeInt(pixelY[i]);
+			}
+			out.close();
+			out = null;
+
+			if(!temporary.renameTo(this.cacheFile)) {
+				// Some file systems will not rename over an existing file
+				this.cacheFile.delete();
+				if(!temporary.renameTo(this.cacheFile)) {
+					HallucinationLog.i(TAG, "Could not move cache into place");
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			HallucinationLog.i(TAG, "Could not write cache: " + e.getMessage());
+			temporary.delete();
+			return false;
+		} finally {
+			close(out);
+		}
+	}
+
+	private static void writeName(DataOutputStream out, String name) throws IOException {
+		byte[] bytes = name.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	// The typed views read from the current position without moving it
+	private static void skip(ByteBuffer buffer, int bytes) {
+		buffer.position(buffer.position() + bytes);
+	}
+
+	private static void close(Closeable closeable) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				HallucinationLog.i(TAG, "Could not close cache file: " + e.getMessage());
+			}
+		}
+	}
+
+	public File getCacheFile() {
+		return cacheFile;
+	}
+}
@@ -0,0 +1,15 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Locates the high-res library images, without decoding them.
+ */
+public interface LibrarySource {
+
+	/**
+	 * @return The library image files, keyed by a name unique within the library
+	 */
+	Map<String, File> findImages();
+}
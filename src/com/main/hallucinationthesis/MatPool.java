@@ -0,0 +1,198 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * A pool of scratch Mats keyed by size and type, so that repeated
+ * hallucinations of the same size reuse their native buffers rather than
+ * allocating and freeing them every time.
+ *
+ * A borrowed Mat belongs to the borrower until it is given back, after which
+ * it must not be touched again. Mats given back while the pool holds more than
+ * its byte budget are released instead of kept. Every borrowed Mat is tracked
+ * until it comes back, so that leaks show up in checkLeaks; with leak tracing
+ * on, the stack that borrowed each one is kept too. Thread safe.
+ */
+public class MatPool {
+
+	private static final String TAG = "MatPool";
+
+	private final long maxBytes;
+
+	private final Map<Long, ArrayDeque<Mat>> free;
+	private long freeBytes;
+
+	// Each borrowed Mat, with where it was borrowed from when tracing
+	private final Map<Mat, Throwable> borrowed;
+	private boolean tracingLeaks;
+
+	private long allocations;
+	private long allocatedBytes;
+	private long reuses;
+
+	/**
+	 * @param maxBytes
+	 * 				The most bytes of free Mats to keep for reuse
+	 * @throws IllegalArgumentException
+	 * 				If the budget is negative
+	 */
+	public MatPool(long maxBytes) {
+		if(maxBytes<0) {
+			throw new IllegalArgumentException("Budget cannot be negative");
+		}
+		this.maxBytes = maxBytes;
+		this.free = new HashMap<Long, ArrayDeque<Mat>>();
+		this.borrowed = new IdentityHashMap<Mat, Throwable>();
+	}
+
+	/**
+	 * @return A Mat of the given size and type with undefined contents, to be given back once done with
+	 */
+	public synchronized Mat borrow(int rows, int cols, int type) {
+		ArrayDeque<Mat> mats = this.free.get(key(rows, cols, type));
+		Mat mat;
+		if(mats != null && !mats.isEmpty()) {
+			mat = mats.pop();
+			this.freeBytes -= bytes(mat);
+			this.reuses++;
+		} else {
+			mat = new Mat(rows, cols, type);
+			this.allocations++;
+			this.allocatedBytes += bytes(mat);
+		}
+		this.borrowed.put(mat, this.tracingLeaks ? new Throwable("Borrowed here") : null);
+		return mat;
+	}
+
+	public Mat borrow(Size size, int type) {
+		return borrow((int)size.height, (int)size.width, type);
+	}
+
+	/**
+	 * Gives back a borrowed Mat. An OpenCV call may have reallocated it
+	 * to another size or type, in which case it is kept under the new one.
+	 *
+	 * @param mat
+	 * 				A Mat borrowed from this pool, or null to do nothing
+	 * @throws IllegalArgumentException
+	 * 				If the Mat was not borrowed from this pool, or was already given back
+	 */
+	public synchronized void giveBack(Mat mat) {
+		if(mat == null) {
+			return;
+		}
+		if(!this.borrowed.containsKey(mat)) {
+			throw new IllegalArgumentException("Mat was not borrowed from this pool");
+		}
+		this.borrowed.remove(mat);
+
+		long size = bytes(mat);
+		if(mat.empty() || this.freeBytes + size > this.maxBytes) {
+			mat.release();
+			return;
+		}
+		Long key = key(mat.rows(), mat.cols(), mat.type());
+		ArrayDeque<Mat> mats = this.free.get(key);
+		if(mats == null) {
+			mats = new ArrayDeque<Mat>();
+			this.free.put(key, mats);
+		}
+		mats.push(mat);
+		this.freeBytes += size;
+	}
+
+	/**
+	 * Logs every Mat that is still borrowed, with where it was borrowed
+	 * from if leaks were being traced at the time.
+	 *
+	 * @return The number of Mats still borrowed
+	 */
+	public synchronized int checkLeaks() {
+		for(Map.Entry<Mat, Throwable> entry : this.borrowed.entrySet()) {
+			Mat mat = entry.getKey();
+			StringBuilder message = new StringBuilder("Still borrowed: ").append(mat.rows()).append('x')
+					.append(mat.cols()).append(' ').append(CvType.typeToString(mat.type()));
+			if(entry.getValue() != null) {
+				StackTraceElement[] stack = entry.getValue().getStackTrace();
+				for(int s=1; s<stack.length; s++) {
+					message.append("\n\tat ").append(stack[s]);
+				}
+			}
+			HallucinationLog.i(TAG, message.toString());
+		}
+		return this.borrowed.size();
+	}
+
+	/**
+	 * Releases every free Mat. Borrowed Mats are left to their borrowers.
+	 */
+	public synchronized void clear() {
+		for(ArrayDeque<Mat> mats : this.free.values()) {
+			for(Mat mat : mats) {
+				mat.release();
+			}
+		}
+		this.free.clear();
+		this.freeBytes = 0;
+	}
+
+	/**
+	 * @param tracing
+	 * 				Whether to keep the stack of each borrow from now on, which is slow
+	 */
+	public synchronized void setTracingLeaks(boolean tracing) {
+		this.tracingLeaks = tracing;
+	}
+
+	public synchronized boolean isTracingLeaks() {
+		return tracingLeaks;
+	}
+
+	public synchronized int getBorrowed() {
+		return borrowed.size();
+	}
+
+	public synchronized long getFreeBytes() {
+		return freeBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return The number of Mats the pool has had to allocate
+	 */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return The bytes of every Mat the pool has had to allocate
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return The number of borrows served from a free Mat
+	 */
+	public synchronized long getReuses() {
+		return reuses;
+	}
+
+	private static Long key(int rows, int cols, int type) {
+		return Long.valueOf(((long)rows << 36) | ((long)cols << 12) | type);
+	}
+
+	private static long bytes(Mat mat) {
+		return mat.total()*mat.elemSize();
+	}
+}
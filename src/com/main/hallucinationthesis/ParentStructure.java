@@ -6,8 +6,6 @@ import java.util.List;
 
 import org.opencv.core.Point;
 
-import android.util.Log;
-
 /**
  * A class to represent the PS/parent structure of a point
  * in an image. Represents the same data structure as described
@@ -18,6 +16,13 @@ import android.util.Log;
  */
 public class ParentStructure {
 	
+	// The number of packed values describing one level: the three laplacian
+	// colour channels followed by H1, H2, V1 and V2
+	public static final int LEVEL_LENGTH = 7;
+	
+	// The number of packed values describing the whole structure: this level then its parent
+	public static final int FEATURE_LENGTH = 2*LEVEL_LENGTH;
+	
 	// The five values for THIS level of the pyramid
 	// Note that the values are double arrays (allowing for grayscale OR colour)
 	private List<double[]> currentValues;
@@ -69,8 +74,6 @@ public class ParentStructure {
 		this.pixelPosition = position;
 		this.weightings = weightings;
 		this.weightedScore = calculateWeightedScore();
-		
-		System.gc();
 	}
 	
 	// Use a weighted L^2 norm
@@ -78,11 +81,53 @@ public class ParentStructure {
 	// requires 4 values for this.currentValues.get(0)
 	// All of the others are a single value
 	private Double calculateWeightedScore() {
-		return this.weightings[0]*(1/(Math.pow(2, this.pyramidHeight)))*(this.currentValues.get(0)[0] + this.currentValues.get(0)[1] + this.currentValues.get(0)[2])// + this.currentValues.get(0)[3])
-				+ this.weightings[1]*(1/(Math.pow(2, this.pyramidHeight)))*(this.currentValues.get(1)[0])
-				+ this.weightings[2]*(1/(Math.pow(2, this.pyramidHeight)))*(this.currentValues.get(2)[0])
-				+ this.weightings[3]*(1/(Math.pow(2, this.pyramidHeight)))*(this.currentValues.get(3)[0])
-				+ this.weightings[4]*(1/(Math.pow(2, this.pyramidHeight)))*(this.currentValues.get(4)[0]);
+		double levelScale = 1/(Math.pow(2, this.pyramidHeight));
+		return this.weightings[0]*levelScale*(this.currentValues.get(0)[0] + this.currentValues.get(0)[1] + this.currentValues.get(0)[2])// + this.currentValues.get(0)[3])
+				+ this.weightings[1]*levelScale*(this.currentValues.get(1)[0])
+				+ this.weightings[2]*levelScale*(this.currentValues.get(2)[0])
+				+ this.weightings[3]*levelScale*(this.currentValues.get(3)[0])
+				+ this.weightings[4]*levelScale*(this.currentValues.get(4)[0]);
+	}
+
+	/**
+	 * Packs this structure into a flat feature vector of FEATURE_LENGTH floats,
+	 * with every value already multiplied by its weighting and level scale.
+	 * A plain L^2 distance between two packed vectors is then the weighted
+	 * distance between the structures, and the sum of the first LEVEL_LENGTH
+	 * values is the weighted score. A missing parent is packed as zeros.
+	 * 
+	 * @param destination
+	 * 				The array to pack into
+	 * @param offset
+	 * 				The index of the first value written
+	 */
+	public void packFeatures(float[] destination, int offset) {
+		packLevel(this.currentValues, 1/(Math.pow(2, this.pyramidHeight)), destination, offset);
+		packLevel(this.parentValues, 1/(Math.pow(2, this.pyramidHeight+1)), destination, offset+LEVEL_LENGTH);
+	}
+	
+	private void packLevel(List<double[]> values, double levelScale, float[] destination, int offset) {
+		if(values.size()==0) {
+			Arrays.fill(destination, offset, offset+LEVEL_LENGTH, 0f);
+			return;
+		}
+		for(int c=0; c<3; c++) {
+			destination[offset+c] = (float)(this.weightings[0]*levelScale*values.get(0)[c]);
+		}
+		for(int d=1; d<5; d++) {
+			destination[offset+2+d] = (float)(this.weightings[d]*levelScale*values.get(d)[0]);
+		}
+	}
+	
+	/**
+	 * The weighted score of a vector packed by packFeatures.
+	 */
+	public static double packedScore(float[] features, int offset) {
+		double score = 0;
+		for(int d=0; d<LEVEL_LENGTH; d++) {
+			score += features[offset+d];
+		}
+		return score;
 	}
 
 	public Double getWeightedScore() {
@@ -0,0 +1,84 @@
+package com.main.hallucinationthesis;
+
+/**
+ * A searchable view over the parent structures of the high-res library.
+ * 
+ * Queries are feature vectors packed by ParentStructure.packFeatures, and
+ * results are entry numbers that can be resolved back to the library image
+ * and the pixel position the matched structure came from.
+ */
+public interface ParentStructureMatcher {
+
+	/**
+	 * Finds the library entry nearest to the query, provided it lies
+	 * strictly within the threshold. The distance the threshold applies to
+	 * is the one the implementation searches on.
+	 * 
+	 * @param query
+	 * 				The packed feature vector(s)
+	 * @param offset
+	 * 				The index of the first value of the query vector
+	 * @param threshold
+	 * 				The maximum allowed distance
+	 * @return The matched entry, or -1 if none is within the threshold
+	 */
+	int findMatch(float[] query, int offset, double threshold);
+
+	/**
+	 * Finds up to k library entries nearest to the query.
+	 * 
+	 * @param query
+	 * 				The packed feature vector(s)
+	 * @param offset
+	 * 				The index of the first value of the query vector
+	 * @param k
+	 * 				The number of neighbours wanted
+	 * @param result
+	 * 				Filled with the entries found, nearest first; must hold at least k values
+	 * @return The number of entries written into result
+	 */
+	int findNearest(float[] query, int offset, int k, int[] result);
+
+	/**
+	 * Finds the library entries within the threshold that a search policy asks
+	 * for: up to its number of results, stopping at the first one found if it
+	 * allows, or with the best found so far once it has run out of time. Every
+	 * entry compared is counted into the search, but the search itself is left
+	 * for the caller to count.
+	 *
+	 * @param query
+	 * 				The packed feature vector(s)
+	 * @param offset
+	 * 				The index of the first value of the query vector
+	 * @param level
+	 * 				The pyramid height the query was taken from, or -1 if unknown, for
+	 * 				matchers that keep each height apart
+	 * @param threshold
+	 * 				The maximum allowed distance
+	 * @param search
+	 * 				The policy's search for the current thread
+	 * @param result
+	 * 				Filled with the entries found, nearest first; must hold the search's maximum results
+	 * @return The number of entries written into result
+	 */
+	int findWithin(float[] query, int offset, int level, double threshold, SearchPolicy.Search search, int[] result);
+
+	/**
+	 * The distance between the query and a library entry, in the same
+	 * terms as the threshold given to findMatch.
+	 */
+	double getDistance(float[] query, int offset, int entry);
+
+	int size();
+
+	String getImageName(int entry);
+
+	/**
+	 * The pyramid height of a library entry, which its pixel position is on.
+	 */
+	int getPyramidHeight(int entry);
+
+	int getPixelX(int entry);
+
+	int getPixelY(int entry);
+}
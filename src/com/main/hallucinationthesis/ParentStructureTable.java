@@ -0,0 +1,255 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Point;
+
+/**
+ * A flat, struct-of-arrays store for every parent structure of one image.
+ *
+ * Rather than one ParentStructure object per pixel, the raw values of each
+ * structure are held in a single contiguous float array of FEATURE_LENGTH values
+ * per row, with the pyramid level and pixel position in parallel primitive columns.
+ * All rows share one weightings vector, and are addressed by their row index.
+ *
+ * The raw layout of a row matches ParentStructure.packFeatures, before weighting:
+ * the three laplacian channels then H1, H2, V1, V2 for this level, followed by
+ * the same seven values for the parent level (zero if there is no parent).
+ */
+public class ParentStructureTable {
+
+	private static final int FEATURE_LENGTH = ParentStructure.FEATURE_LENGTH;
+	private static final int LEVEL_LENGTH = ParentStructure.LEVEL_LENGTH;
+
+	// The raw feature values, FEATURE_LENGTH per row
+	private float[] features;
+
+	// The pyramid height of each row
+	private byte[] levels;
+
+	// The pixel position of each row on its own pyramid level
+	private short[] pixelX;
+	private short[] pixelY;
+
+	// The weightings of the laplacian and the four derivatives, shared by every row
+	private double[] weightings;
+
+	private int size;
+
+	/**
+	 * @param capacity
+	 * 				The number of rows to allocate up front
+	 * @param weightings
+	 * 				The five weightings shared by every row
+	 * @throws NullPointerException
+	 * 				If the weightings are null
+	 * @throws IllegalArgumentException
+	 * 				If there are not five weightings or the capacity is negative
+	 */
+	public ParentStructureTable(int capacity, double[] weightings) {
+		if(weightings==null) {
+			throw new NullPointerException("Weightings cannot be null");
+		}
+		if(weightings.length!=5||capacity<0) {
+			throw new IllegalArgumentException("Five weightings and a non-negative capacity are required");
+		}
+		this.weightings = weightings;
+		this.features = new float[capacity*FEATURE_LENGTH];
+		this.levels = new byte[capacity];
+		this.pixelX = new short[capacity];
+		this.pixelY = new short[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Wraps columns that were filled elsewhere, such as from the library cache.
+	 * The arrays are used directly rather than copied.
+	 */
+	ParentStructureTable(float[] features, byte[] levels, short[] pixelX, short[] pixelY, double[] weightings) {
+		this.features = features;
+		this.levels = levels;
+		this.pixelX = pixelX;
+		this.pixelY = pixelY;
+		this.weightings = weightings;
+		this.size = levels.length;
+	}
+
+	/**
+	 * Appends a row with all feature values zeroed.
+	 *
+	 * @return The index of the new row
+	 */
+	public int add(int level, int x, int y) {
+		if(this.size == this.levels.length) {
+			int capacity = Math.max(16, 2*this.size);
+			this.features = Arrays.copyOf(this.features, capacity*FEATURE_LENGTH);
+			this.levels = Arrays.copyOf(this.levels, capacity);
+			this.pixelX = Arrays.copyOf(this.pixelX, capacity);
+			this.pixelY = Arrays.copyOf(this.pixelY, capacity);
+		}
+		int row = this.size++;
+		this.levels[row] = (byte)level;
+		this.pixelX[row] = (short)x;
+		this.pixelY[row] = (short)y;
+		return row;
+	}
+
+	/**
+	 * Sets the seven raw values of one level of a row.
+	 *
+	 * @param row
+	 * 				The row to set
+	 * @param parent
+	 * 				False for the row's own level, true for its parent level
+	 * @param laplacian
+	 * 				The laplacian value, of which the first three channels are used
+	 */
+	public void setLevelValues(int row, boolean parent, double[] laplacian,
+			double h1, double h2, double v1, double v2) {
+		int start = row*FEATURE_LENGTH + (parent ? LEVEL_LENGTH : 0);
+		this.features[start] = (float)laplacian[0];
+		this.features[start+1] = (float)laplacian[1];
+		this.features[start+2] = (float)laplacian[2];
+		this.features[start+3] = (float)h1;
+		this.features[start+4] = (float)h2;
+		this.features[start+5] = (float)v1;
+		this.features[start+6] = (float)v2;
+	}
+
+	/**
+	 * Sets the seven raw values of one level of a row, taking the laplacian
+	 * channels straight out of a flat pixel buffer.
+	 *
+	 * @param laplacian
+	 * 				The laplacian values of a whole level, channel by channel
+	 * @param laplacianOffset
+	 * 				The index of the pixel's first channel in the laplacian values
+	 */
+	public void setLevelValues(int row, boolean parent, float[] laplacian, int laplacianOffset,
+			float h1, float h2, float v1, float v2) {
+		int start = row*FEATURE_LENGTH + (parent ? LEVEL_LENGTH : 0);
+		this.features[start] = laplacian[laplacianOffset];
+		this.features[start+1] = laplacian[laplacianOffset+1];
+		this.features[start+2] = laplacian[laplacianOffset+2];
+		this.features[start+3] = h1;
+		this.features[start+4] = h2;
+		this.features[start+5] = v1;
+		this.features[start+6] = v2;
+	}
+
+	/**
+	 * Packs a row into weighted form, exactly as ParentStructure.packFeatures would.
+	 */
+	public void packFeatures(int row, float[] destination, int offset) {
+		int start = row*FEATURE_LENGTH;
+		double levelScale = 1/(Math.pow(2, this.levels[row]));
+		packLevel(start, levelScale, destination, offset);
+		packLevel(start+LEVEL_LENGTH, levelScale/2, destination, offset+LEVEL_LENGTH);
+	}
+
+	private void packLevel(int start, double levelScale, float[] destination, int offset) {
+		for(int c=0; c<3; c++) {
+			destination[offset+c] = (float)(this.weightings[0]*levelScale*this.features[start+c]);
+		}
+		for(int d=1; d<5; d++) {
+			destination[offset+2+d] = (float)(this.weightings[d]*levelScale*this.features[start+2+d]);
+		}
+	}
+
+	/**
+	 * The weighted score of a row, as ParentStructure.getWeightedScore would give it.
+	 */
+	public double getWeightedScore(int row) {
+		int start = row*FEATURE_LENGTH;
+		double levelScale = 1/(Math.pow(2, this.levels[row]));
+		return this.weightings[0]*levelScale*(this.features[start] + this.features[start+1] + this.features[start+2])
+				+ this.weightings[1]*levelScale*this.features[start+3]
+				+ this.weightings[2]*levelScale*this.features[start+4]
+				+ this.weightings[3]*levelScale*this.features[start+5]
+				+ this.weightings[4]*levelScale*this.features[start+6];
+	}
+
+	/**
+	 * Copies some of the rows into a new table sharing these weightings.
+	 *
+	 * @param rows
+	 * 				The rows to copy, in the order they are to appear
+	 * @param count
+	 * 				The number of rows used from the start of the array
+	 */
+	public ParentStructureTable select(int[] rows, int count) {
+		ParentStructureTable selected = new ParentStructureTable(count, this.weightings);
+		for(int i=0; i<count; i++) {
+			int row = rows[i];
+			selected.add(this.levels[row], this.pixelX[row], this.pixelY[row]);
+			System.arraycopy(this.features, row*FEATURE_LENGTH, selected.features, i*FEATURE_LENGTH, FEATURE_LENGTH);
+		}
+		return selected;
+	}
+
+	/**
+	 * Materialises a row as a standalone ParentStructure.
+	 */
+	public ParentStructure get(int row) {
+		Double[] boxedWeightings = new Double[this.weightings.length];
+		for(int w=0; w<this.weightings.length; w++) {
+			boxedWeightings[w] = this.weightings[w];
+		}
+		List<double[]> parentValues = levelValues(row*FEATURE_LENGTH+LEVEL_LENGTH);
+		boolean hasParent = false;
+		for(int d=0; d<LEVEL_LENGTH; d++) {
+			hasParent |= this.features[row*FEATURE_LENGTH+LEVEL_LENGTH+d] != 0;
+		}
+		return new ParentStructure(levelValues(row*FEATURE_LENGTH),
+				hasParent ? parentValues : new ArrayList<double[]>(),
+				boxedWeightings, this.levels[row], new Point(this.pixelX[row], this.pixelY[row]));
+	}
+
+	private List<double[]> levelValues(int start) {
+		List<double[]> values = new ArrayList<double[]>();
+		values.add(new double[] {this.features[start], this.features[start+1], this.features[start+2]});
+		for(int d=3; d<LEVEL_LENGTH; d++) {
+			values.add(new double[] {this.features[start+d]});
+		}
+		return values;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getPyramidHeight(int row) {
+		return levels[row];
+	}
+
+	public int getPixelX(int row) {
+		return pixelX[row];
+	}
+
+	public int getPixelY(int row) {
+		return pixelY[row];
+	}
+
+	public double[] getWeightings() {
+		return weightings;
+	}
+
+	// The raw columns, which may be longer than size; used by the library cache
+	float[] getFeatureColumn() {
+		return features;
+	}
+
+	byte[] getLevelColumn() {
+		return levels;
+	}
+
+	short[] getPixelXColumn() {
+		return pixelX;
+	}
+
+	short[] getPixelYColumn() {
+		return pixelY;
+	}
+}
@@ -0,0 +1,201 @@
+package com.main.hallucinationthesis;
+
+import java.util.Arrays;
+
+/**
+ * Builds a hallucinated image out of the library patches its structures matched.
+ *
+ * A structure at height h stands for a cell 2^(h+1) pixels across, and each
+ * of its matches contributes the patch of library source pixels under the
+ * matched structure's own cell, scaled to the size of the input's cell. Every
+ * patch reaches half a cell beyond its cell on each side and is weighted by a
+ * tent that peaks at the cell's centre, so neighbouring patches fade into one
+ * another and the weights of a full grid of them add up to one everywhere.
+ * The heights are summed together the same way.
+ *
+ * The weighted sums are kept in primitive buffers that are only ever grown,
+ * so that an accumulator reused for every tile of a frame allocates nothing
+ * once it has seen the largest tile. Not thread safe.
+ */
+public class PatchAccumulator {
+
+	private static final int CHANNELS = 3;
+
+	private final SourcePixels sources;
+
+	private int width;
+	private int height;
+
+	// The weighted sum of every channel of every pixel, and the weights summed into each pixel
+	private float[] sums;
+	private float[] weights;
+
+	// The source columns and tent weight of each column of the current patch
+	private int[] columnLow;
+	private int[] columnHigh;
+	private float[] columnFraction;
+	private float[] columnWeight;
+
+	/**
+	 * @param sources
+	 * 				The library pixels the patches are taken from
+	 * @throws NullPointerException
+	 * 				If the sources are null
+	 */
+	public PatchAccumulator(SourcePixels sources) {
+		if(sources==null) {
+			throw new NullPointerException("Sources cannot be null");
+		}
+		this.sources = sources;
+		this.sums = new float[0];
+		this.weights = new float[0];
+		this.columnLow = new int[0];
+		this.columnHigh = new int[0];
+		this.columnFraction = new float[0];
+		this.columnWeight = new float[0];
+	}
+
+	/**
+	 * Clears the accumulator for an image of the given size.
+	 */
+	public void reset(int width, int height) {
+		int pixels = width*height;
+		if(this.weights.length < pixels) {
+			this.sums = new float[pixels*CHANNELS];
+			this.weights = new float[pixels];
+		} else {
+			Arrays.fill(this.sums, 0, pixels*CHANNELS, 0);
+			Arrays.fill(this.weights, 0, pixels, 0);
+		}
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Adds the patch of one match over the cell of the structure it matched.
+	 *
+	 * @param level
+	 * 				The pyramid height of the input structure
+	 * @param x
+	 * 				The column of the input structure on its height
+	 * @param y
+	 * 				The row of the input structure on its height
+	 * @param image
+	 * 				The library image matched
+	 * @param sourceLevel
+	 * 				The pyramid height of the library structure matched
+	 * @param sourceX
+	 * 				The column of the library structure on its height
+	 * @param sourceY
+	 * 				The row of the library structure on its height
+	 * @param weight
+	 * 				How much the patch counts for against the others
+	 * @throws IllegalArgumentException
+	 * 				If no source pixels are kept for the image
+	 */
+	public void add(int level, int x, int y, String image, int sourceLevel, int sourceX, int sourceY, float weight) {
+		SourcePixels.Source source = this.sources.get(image);
+		if(source == null) {
+			throw new IllegalArgumentException("No source pixels for " + image);
+		}
+		if(source.width == 0 || source.height == 0) {
+			return;
+		}
+		int cell = 1 << (level+1);
+		float sourceCell = (float)Math.scalb(1.0, sourceLevel+1-this.sources.getLevel());
+		int left = x*cell - cell/2;
+		int top = y*cell - cell/2;
+		int span = 2*cell;
+		int columnStart = Math.max(0, -left);
+		int columnEnd = Math.min(span, this.width-left);
+		int rowStart = Math.max(0, -top);
+		int rowEnd = Math.min(span, this.height-top);
+		if(columnStart >= columnEnd || rowStart >= rowEnd) {
+			return;
+		}
+
+		ensureColumns(span);
+		for(int u=columnStart; u<columnEnd; u++) {
+			// Where the pixel's centre lies in cells from the start of the cell, from -0.5 to 1.5
+			float t = (u+0.5f)/cell - 0.5f;
+			this.columnWeight[u] = 1 - Math.abs(t-0.5f);
+			float sx = clamp((sourceX+t)*sourceCell - 0.5f, source.width-1);
+			int low = (int)sx;
+			this.columnLow[u] = low*CHANNELS;
+			this.columnHigh[u] = Math.min(low+1, source.width-1)*CHANNELS;
+			this.columnFraction[u] = sx-low;
+		}
+
+		int stride = source.width*CHANNELS;
+		for(int v=rowStart; v<rowEnd; v++) {
+			float t = (v+0.5f)/cell - 0.5f;
+			float rowWeight = weight*(1 - Math.abs(t-0.5f));
+			float sy = clamp((sourceY+t)*sourceCell - 0.5f, source.height-1);
+			int low = (int)sy;
+			int lowRow = low*stride;
+			int highRow = Math.min(low+1, source.height-1)*stride;
+			float fy = sy-low;
+
+			int pixel = (top+v)*this.width + left;
+			for(int u=columnStart; u<columnEnd; u++) {
+				float w = rowWeight*this.columnWeight[u];
+				float fx = this.columnFraction[u];
+				int position = (pixel+u)*CHANNELS;
+				for(int c=0; c<CHANNELS; c++) {
+					float upper = lerp(source, lowRow+this.columnLow[u]+c, lowRow+this.columnHigh[u]+c, fx);
+					float lower = lerp(source, highRow+this.columnLow[u]+c, highRow+this.columnHigh[u]+c, fx);
+					this.sums[position+c] += w*(upper + (lower-upper)*fy);
+				}
+				this.weights[pixel+u] += w;
+			}
+		}
+	}
+
+	/**
+	 * Writes the blended patches over an image the size of the last reset,
+	 * leaving the pixels no patch reached as they were.
+	 *
+	 * @param output
+	 * 				A continuous 3 channel buffer, holding what uncovered pixels should show
+	 */
+	public void write(byte[] output) {
+		int pixels = this.width*this.height;
+		for(int p=0; p<pixels; p++) {
+			float weight = this.weights[p];
+			if(weight > 0) {
+				int position = p*CHANNELS;
+				for(int c=0; c<CHANNELS; c++) {
+					output[position+c] = (byte)Math.min(255, Math.round(this.sums[position+c]/weight));
+				}
+			}
+		}
+	}
+
+	private static float lerp(SourcePixels.Source source, int a, int b, float fraction) {
+		float first = source.pixels.get(a) & 0xff;
+		float second = source.pixels.get(b) & 0xff;
+		return first + (second-first)*fraction;
+	}
+
+	// Positions off the source read its nearest edge
+	private static float clamp(float value, int max) {
+		return value < 0 ? 0 : (value > max ? max : value);
+	}
+
+	private void ensureColumns(int span) {
+		if(this.columnWeight.length < span) {
+			this.columnLow = new int[span];
+			this.columnHigh = new int[span];
+			this.columnFraction = new float[span];
+			this.columnWeight = new float[span];
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,397 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sorted, primitive index over the weighted scores of every parent structure
+ * in the high-res library.
+ *
+ * All entries are kept in one flat double array sorted by score, with parallel
+ * arrays holding the library image, pyramid height and pixel position each score came from.
+ * An input parent structure can then find its candidates with a binary search
+ * inside the threshold window instead of scanning the whole library.
+ */
+public class ScoreIndex implements ParentStructureMatcher {
+
+	// The library image names, indexed by the values in imageIds
+	private String[] imageNames;
+
+	// The weighted scores of every library parent structure, in ascending order
+	private double[] scores;
+
+	// The library image each score belongs to
+	private int[] imageIds;
+
+	// The pyramid height of each score
+	private byte[] levels;
+
+	// The pixel position on its own pyramid level of each score
+	private int[] pixelX;
+	private int[] pixelY;
+
+	/**
+	 * Builds the index from the deconstructed library.
+	 *
+	 * @param library
+	 * 				The mapping from image name to its table of parent structures
+	 * @throws NullPointerException
+	 * 				If the library is null
+	 */
+	public ScoreIndex(Map<String, ParentStructureTable> library) {
+		if(library==null) {
+			throw new NullPointerException("Library cannot be null");
+		}
+
+		int size = 0;
+		for(ParentStructureTable structures : library.values()) {
+			size += structures.size();
+		}
+
+		this.imageNames = new String[library.size()];
+		this.scores = new double[size];
+		this.imageIds = new int[size];
+		this.levels = new byte[size];
+		this.pixelX = new int[size];
+		this.pixelY = new int[size];
+
+		int imageId = 0;
+		int entry = 0;
+		for(Map.Entry<String, ParentStructureTable> image : library.entrySet()) {
+			this.imageNames[imageId] = image.getKey();
+			ParentStructureTable structures = image.getValue();
+			for(int j=0; j<structures.size(); j++) {
+				this.scores[entry] = structures.getWeightedScore(j);
+				this.imageIds[entry] = imageId;
+				this.levels[entry] = (byte)structures.getPyramidHeight(j);
+				this.pixelX[entry] = structures.getPixelX(j);
+				this.pixelY[entry] = structures.getPixelY(j);
+				entry++;
+			}
+			imageId++;
+		}
+
+		// Sort the scores in place, carrying the parallel arrays along
+		sort(0, size-1);
+	}
+
+	/**
+	 * Wraps an index that was already sorted, such as one read from the library cache.
+	 * The arrays are used directly rather than copied.
+	 */
+	ScoreIndex(String[] imageNames, double[] scores, int[] imageIds, byte[] levels, int[] pixelX, int[] pixelY) {
+		this.imageNames = imageNames;
+		this.scores = scores;
+		this.imageIds = imageIds;
+		this.levels = levels;
+		this.pixelX = pixelX;
+		this.pixelY = pixelY;
+	}
+
+	/**
+	 * Merges two indices over disjoint sets of images into one,
+	 * in time linear in their combined size.
+	 *
+	 * @return A new index holding the entries of both
+	 */
+	public static ScoreIndex merge(ScoreIndex first, ScoreIndex second) {
+		int images = first.imageNames.length;
+		String[] imageNames = new String[images + second.imageNames.length];
+		System.arraycopy(first.imageNames, 0, imageNames, 0, images);
+		System.arraycopy(second.imageNames, 0, imageNames, images, second.imageNames.length);
+
+		int size = first.size() + second.size();
+		double[] scores = new double[size];
+		int[] imageIds = new int[size];
+		byte[] levels = new byte[size];
+		int[] pixelX = new int[size];
+		int[] pixelY = new int[size];
+
+		int a = 0;
+		int b = 0;
+		for(int i=0; i<size; i++) {
+			if(b >= second.size() || (a < first.size() && first.scores[a] <= second.scores[b])) {
+				scores[i] = first.scores[a];
+				imageIds[i] = first.imageIds[a];
+				levels[i] = first.levels[a];
+				pixelX[i] = first.pixelX[a];
+				pixelY[i] = first.pixelY[a];
+				a++;
+			} else {
+				scores[i] = second.scores[b];
+				imageIds[i] = second.imageIds[b] + images;
+				levels[i] = second.levels[b];
+				pixelX[i] = second.pixelX[b];
+				pixelY[i] = second.pixelY[b];
+				b++;
+			}
+		}
+		return new ScoreIndex(imageNames, scores, imageIds, levels, pixelX, pixelY);
+	}
+
+	/**
+	 * Merges indices over disjoint sets of images into one, pairing them off so
+	 * that each entry is copied once per halving of the list rather than once per index.
+	 *
+	 * @param indexes
+	 * 				The indices to merge, at least one
+	 * @return A new index holding the entries of all of them, or the only index if there is one
+	 * @throws IllegalArgumentException
+	 * 				If there are no indices
+	 */
+	public static ScoreIndex merge(List<ScoreIndex> indexes) {
+		if(indexes.isEmpty()) {
+			throw new IllegalArgumentException("At least one index is required");
+		}
+		List<ScoreIndex> round = new ArrayList<ScoreIndex>(indexes);
+		while(round.size() > 1) {
+			List<ScoreIndex> next = new ArrayList<ScoreIndex>((round.size()+1)/2);
+			for(int i=0; i+1<round.size(); i+=2) {
+				next.add(merge(round.get(i), round.get(i+1)));
+			}
+			if(round.size()%2 == 1) {
+				next.add(round.get(round.size()-1));
+			}
+			round = next;
+		}
+		return round.get(0);
+	}
+
+	/**
+	 * Finds the library entry whose score is closest to the given score,
+	 * provided it lies strictly within the threshold.
+	 *
+	 * @param score
+	 * 				The weighted score of the input parent structure
+	 * @param threshold
+	 * 				The maximum allowed score difference
+	 * @return The index of the closest entry, or -1 if none is within the threshold
+	 */
+	public int findClosest(double score, double threshold) {
+		if(this.scores.length==0) {
+			return -1;
+		}
+
+		// The first entry with a score greater than or equal to the given score
+		int upper = lowerBound(score);
+		int lower = upper-1;
+
+		int best = -1;
+		double bestDifference = threshold;
+		if(upper < this.scores.length && this.scores[upper]-score < bestDifference) {
+			best = upper;
+			bestDifference = this.scores[upper]-score;
+		}
+		if(lower >= 0 && score-this.scores[lower] < bestDifference) {
+			best = lower;
+		}
+		return best;
+	}
+
+	@Override
+	public int findMatch(float[] query, int offset, double threshold) {
+		return findClosest(ParentStructure.packedScore(query, offset), threshold);
+	}
+
+	@Override
+	public int findNearest(float[] query, int offset, int k, int[] result) {
+		double score = ParentStructure.packedScore(query, offset);
+		
+		// Walk outwards from the insertion point, taking the closer side each time
+		int upper = lowerBound(score);
+		int lower = upper-1;
+		int found = 0;
+		while(found < k && (lower >= 0 || upper < this.scores.length)) {
+			if(upper >= this.scores.length 
+					|| (lower >= 0 && score-this.scores[lower] <= this.scores[upper]-score)) {
+				result[found++] = lower--;
+			} else {
+				result[found++] = upper++;
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public int findWithin(float[] query, int offset, int level, double threshold, SearchPolicy.Search search, int[] result) {
+		double score = ParentStructure.packedScore(query, offset);
+		int k = search.getMaxResults();
+		// Out of time, take the first entry found as for FIRST_WITHIN_THRESHOLD
+		boolean expired = search.isExpired();
+		boolean firstOnly = search.isFirstOnly() || expired;
+		if(expired) {
+			search.markCutShort();
+		}
+
+		int upper = lowerBound(score);
+		int lower = upper-1;
+		int found = 0;
+		int candidates = 0;
+		if(firstOnly) {
+			// The entry just above is as good as any, so only look below if it misses
+			if(upper < this.scores.length) {
+				candidates++;
+				if(this.scores[upper]-score < threshold) {
+					result[found++] = upper;
+				}
+			}
+			if(found == 0 && lower >= 0) {
+				candidates++;
+				if(score-this.scores[lower] < threshold) {
+					result[found++] = lower;
+				}
+			}
+		} else {
+			// Walk outwards taking the closer side, until the closer side misses the threshold
+			candidates = (upper < this.scores.length ? 1 : 0) + (lower >= 0 ? 1 : 0);
+			while(found < k && (lower >= 0 || upper < this.scores.length)) {
+				boolean below = upper >= this.scores.length
+						|| (lower >= 0 && score-this.scores[lower] < this.scores[upper]-score);
+				int entry = below ? lower : upper;
+				if(Math.abs(this.scores[entry]-score) >= threshold) {
+					break;
+				}
+				result[found++] = entry;
+				if(below) {
+					lower--;
+					candidates += lower >= 0 && found < k ? 1 : 0;
+				} else {
+					upper++;
+					candidates += upper < this.scores.length && found < k ? 1 : 0;
+				}
+			}
+		}
+		search.countCandidates(candidates);
+		return found;
+	}
+
+	@Override
+	public double getDistance(float[] query, int offset, int entry) {
+		return Math.abs(this.scores[entry]-ParentStructure.packedScore(query, offset));
+	}
+
+	// Binary search for the first entry whose score is not less than the key
+	private int lowerBound(double key) {
+		int low = 0;
+		int high = this.scores.length;
+		while(low < high) {
+			int mid = (low+high) >>> 1;
+			if(this.scores[mid] < key) {
+				low = mid+1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// Quicksort on the scores that swaps the parallel arrays alongside,
+	// avoiding a boxed ordering array for libraries of millions of entries
+	private void sort(int low, int high) {
+		while(high-low > 16) {
+			double pivot = this.scores[(low+high) >>> 1];
+			int i = low;
+			int j = high;
+			while(i <= j) {
+				while(this.scores[i] < pivot) {
+					i++;
+				}
+				while(this.scores[j] > pivot) {
+					j--;
+				}
+				if(i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller half to bound the stack depth
+			if(j-low < high-i) {
+				sort(low, j);
+				low = i;
+			} else {
+				sort(i, high);
+				high = j;
+			}
+		}
+		// Insertion sort for the short runs left over
+		for(int i = low+1; i <= high; i++) {
+			for(int j = i; j > low && this.scores[j-1] > this.scores[j]; j--) {
+				swap(j, j-1);
+			}
+		}
+	}
+
+	private void swap(int a, int b) {
+		double score = this.scores[a];
+		this.scores[a] = this.scores[b];
+		this.scores[b] = score;
+		int imageId = this.imageIds[a];
+		this.imageIds[a] = this.imageIds[b];
+		this.imageIds[b] = imageId;
+		byte level = this.levels[a];
+		this.levels[a] = this.levels[b];
+		this.levels[b] = level;
+		int x = this.pixelX[a];
+		this.pixelX[a] = this.pixelX[b];
+		this.pixelX[b] = x;
+		int y = this.pixelY[a];
+		this.pixelY[a] = this.pixelY[b];
+		this.pixelY[b] = y;
+	}
+
+	@Override
+	public int size() {
+		return scores.length;
+	}
+
+	public double getScore(int entry) {
+		return scores[entry];
+	}
+
+	@Override
+	public String getImageName(int entry) {
+		return imageNames[imageIds[entry]];
+	}
+
+	@Override
+	public int getPyramidHeight(int entry) {
+		return levels[entry];
+	}
+
+	@Override
+	public int getPixelX(int entry) {
+		return pixelX[entry];
+	}
+
+	@Override
+	public int getPixelY(int entry) {
+		return pixelY[entry];
+	}
+
+	// The sorted columns; used by the library cache
+	String[] getImageNameColumn() {
+		return imageNames;
+	}
+
+	double[] getScoreColumn() {
+		return scores;
+	}
+
+	int[] getImageIdColumn() {
+		return imageIds;
+	}
+
+	byte[] getLevelColumn() {
+		return levels;
+	}
+
+	int[] getPixelXColumn() {
+		return pixelX;
+	}
+
+	int[] getPixelYColumn() {
+		return pixelY;
+	}
+}
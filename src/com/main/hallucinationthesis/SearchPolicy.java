@@ -0,0 +1,255 @@
+package com.main.hallucinationthesis;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How hard each input structure is searched for in the library, trading the
+ * quality of the matches against the time taken to find them.
+ *
+ * FIRST_WITHIN_THRESHOLD takes the first library structure found within the
+ * threshold, which is "good enough" and the cheapest. BEST keeps looking for
+ * the nearest one within the threshold. TOP_K keeps the k nearest within the
+ * threshold and the hallucinated pixel is their average. DEADLINE searches
+ * like BEST until a time budget for the whole frame runs out, after which each
+ * search settles for the best it has found so far.
+ *
+ * Every policy counts the searches made and the library candidates compared,
+ * so that the modes can be tuned against each other on each device. Each
+ * matching thread counts into its own Search without any locking, and the
+ * searches are merged into the policy once at the end, as ThresholdTrace does.
+ * A Search also holds the scratch buffers matchers reuse from one query of its
+ * thread to the next, so that searching allocates nothing after the first query.
+ */
+public class SearchPolicy {
+
+	public enum Mode { FIRST_WITHIN_THRESHOLD, BEST, TOP_K, DEADLINE }
+
+	private final Mode mode;
+	private final int k;
+	private final long budgetNanos;
+
+	// The counts merged from every search since they were last reset
+	private long searches;
+	private long candidates;
+	private long matched;
+	private long cutShort;
+
+	/**
+	 * The state of the searches made by one matching thread. Not thread safe.
+	 */
+	public final class Search {
+		private final long deadline;
+		private boolean expired;
+		private boolean cutShortNow;
+		private long searches;
+		private long candidates;
+		private long matched;
+		private long cutShort;
+
+		// The scratch buffers of each matcher searched on this thread
+		private final IdentityHashMap<Object, Object> scratch;
+
+		private Search(long deadline) {
+			this.deadline = deadline;
+			this.scratch = new IdentityHashMap<Object, Object>();
+		}
+
+		/**
+		 * @param owner
+		 * 				The matcher the scratch belongs to
+		 * @return What the owner last kept here, or null before its first query on this thread
+		 */
+		public Object getScratch(Object owner) {
+			return this.scratch.get(owner);
+		}
+
+		/**
+		 * Keeps a matcher's scratch buffers for its next query on this thread.
+		 */
+		public void putScratch(Object owner, Object value) {
+			this.scratch.put(owner, value);
+		}
+
+		/**
+		 * @return Whether a search may stop at the first entry within the threshold
+		 */
+		public boolean isFirstOnly() {
+			return mode == Mode.FIRST_WITHIN_THRESHOLD;
+		}
+
+		/**
+		 * @return The most entries a search should find
+		 */
+		public int getMaxResults() {
+			return k;
+		}
+
+		/**
+		 * Whether the frame's time budget has run out, after which searches
+		 * should return the best found so far. Never true outside DEADLINE mode.
+		 */
+		public boolean isExpired() {
+			if(mode != Mode.DEADLINE) {
+				return false;
+			}
+			// Once out of time, stay out without reading the clock again
+			if(!this.expired && System.nanoTime()-this.deadline >= 0) {
+				this.expired = true;
+			}
+			return this.expired;
+		}
+
+		/**
+		 * Counts library entries compared against the query.
+		 */
+		public void countCandidates(int count) {
+			this.candidates += count;
+		}
+
+		/**
+		 * Marks the current search as stopped early because the budget ran out,
+		 * however many parts of it did so.
+		 */
+		public void markCutShort() {
+			this.cutShortNow = true;
+		}
+
+		/**
+		 * Counts a finished search. Called once per query by whoever asked the
+		 * matcher, since one query may be several searches of smaller matchers.
+		 *
+		 * @param found
+		 * 				The number of entries it found within the threshold
+		 * @return Whether the search was cut short, so that its matches may not be the best
+		 */
+		public boolean countSearch(int found) {
+			this.searches++;
+			if(found > 0) {
+				this.matched++;
+			}
+			boolean wasCutShort = this.cutShortNow;
+			if(wasCutShort) {
+				this.cutShort++;
+				this.cutShortNow = false;
+			}
+			return wasCutShort;
+		}
+	}
+
+	private SearchPolicy(Mode mode, int k, long budgetNanos) {
+		this.mode = mode;
+		this.k = k;
+		this.budgetNanos = budgetNanos;
+	}
+
+	public static SearchPolicy firstWithinThreshold() {
+		return new SearchPolicy(Mode.FIRST_WITHIN_THRESHOLD, 1, 0);
+	}
+
+	public static SearchPolicy best() {
+		return new SearchPolicy(Mode.BEST, 1, 0);
+	}
+
+	/**
+	 * @param k
+	 * 				The most library structures averaged into each pixel
+	 * @throws IllegalArgumentException
+	 * 				If k is less than 1
+	 */
+	public static SearchPolicy topK(int k) {
+		if(k<1) {
+			throw new IllegalArgumentException("K must be at least 1");
+		}
+		return new SearchPolicy(Mode.TOP_K, k, 0);
+	}
+
+	/**
+	 * @param budget
+	 * 				The time allowed for matching each frame
+	 * @param unit
+	 * 				The unit of the budget
+	 * @throws IllegalArgumentException
+	 * 				If the budget is negative
+	 */
+	public static SearchPolicy deadline(long budget, TimeUnit unit) {
+		if(budget<0) {
+			throw new IllegalArgumentException("Budget cannot be negative");
+		}
+		return new SearchPolicy(Mode.DEADLINE, 1, unit.toNanos(budget));
+	}
+
+	/**
+	 * @param frameStart
+	 * 				The System.nanoTime the frame started at, which the budget runs from
+	 */
+	public Search newSearch(long frameStart) {
+		return new Search(frameStart + this.budgetNanos);
+	}
+
+	/**
+	 * Adds the counts of a finished search into the policy's.
+	 */
+	public synchronized void merge(Search search) {
+		this.searches += search.searches;
+		this.candidates += search.candidates;
+		this.matched += search.matched;
+		this.cutShort += search.cutShort;
+	}
+
+	public synchronized void resetCounts() {
+		this.searches = 0;
+		this.candidates = 0;
+		this.matched = 0;
+		this.cutShort = 0;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public long getBudget(TimeUnit unit) {
+		return unit.convert(budgetNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public synchronized long getSearches() {
+		return searches;
+	}
+
+	/**
+	 * @return The number of library entries compared across every search
+	 */
+	public synchronized long getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * @return The number of searches that found at least one entry within the threshold
+	 */
+	public synchronized long getMatched() {
+		return matched;
+	}
+
+	/**
+	 * @return The number of searches stopped early because the frame ran out of time
+	 */
+	public synchronized long getCutShort() {
+		return cutShort;
+	}
+
+	public synchronized double getCandidatesPerSearch() {
+		return searches == 0 ? 0 : (double)candidates/searches;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mode + (mode == Mode.TOP_K ? "(" + k + ")" : "")
+				+ (mode == Mode.DEADLINE ? "(" + TimeUnit.NANOSECONDS.toMillis(budgetNanos) + "ms)" : "")
+				+ ": " + searches + " searches, " + candidates + " candidates, "
+				+ matched + " matched, " + cutShort + " cut short";
+	}
+}
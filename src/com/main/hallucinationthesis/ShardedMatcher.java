@@ -0,0 +1,437 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A library split into shards, each searched by a matcher of its own, so that
+ * a query only pays for the shards that could hold its match.
+ *
+ * Every library structure goes into the shard of its pyramid height, the
+ * category of its image (such as "fonts" or "faces") and the bucket its
+ * Laplacian energy falls in, that being the length of the three packed
+ * Laplacian values of its own level. A query only searches the shards of its
+ * own height and of the categories the matcher is restricted to, visiting them
+ * in order of how far their energies lie from its own. No structure is further
+ * from the query in energy than it is under the weighted L^2 distance, so once
+ * a shard lies further off than the threshold, or than the worst match kept so
+ * far, neither it nor any after it can hold a better match and the search
+ * stops. The pruning is therefore exact for matchers that search on the L^2
+ * distance, such as KdTreeMatcher. For any other distance, such as the score
+ * difference of ScoreIndex, give an infinite bucket width, which keeps one
+ * bucket and prunes on height and category alone.
+ *
+ * Entries are numbered shard after shard, so a restricted view of the matcher
+ * shares its entries and can be swapped for it freely.
+ */
+public class ShardedMatcher implements ParentStructureMatcher {
+
+	/** The category of images the categories given leave out. */
+	public static final String UNCATEGORISED = "";
+
+	/**
+	 * Builds the matcher that searches one shard.
+	 */
+	public interface MatcherFactory {
+		ParentStructureMatcher build(Map<String, ParentStructureTable> shard);
+	}
+
+	private static final class Shard {
+		final int level;
+		final String category;
+		final float minEnergy;
+		final float maxEnergy;
+		final ParentStructureMatcher matcher;
+
+		// The entry number of the shard's first entry
+		final int base;
+
+		Shard(int level, String category, float minEnergy, float maxEnergy, ParentStructureMatcher matcher, int base) {
+			this.level = level;
+			this.category = category;
+			this.minEnergy = minEnergy;
+			this.maxEnergy = maxEnergy;
+			this.matcher = matcher;
+			this.base = base;
+		}
+
+		// No structure in the shard lies closer to the query than this
+		double lowerBound(float energy) {
+			if(energy < this.minEnergy) {
+				return this.minEnergy-energy;
+			}
+			if(energy > this.maxEnergy) {
+				return energy-this.maxEnergy;
+			}
+			return 0;
+		}
+	}
+
+	// The buffers of one thread's queries, kept in its SearchPolicy.Search
+	private static final class Scratch {
+		final double[] bounds;
+		final Shard[] order;
+		final int[] shardResult;
+		final double[] distances;
+
+		Scratch(int shards, int k) {
+			this.bounds = new double[shards];
+			this.order = new Shard[shards];
+			this.shardResult = new int[k];
+			this.distances = new double[k];
+		}
+	}
+
+	// Every shard in entry order, and the first entry of each
+	private final Shard[] shards;
+	private final int[] bases;
+	private final int size;
+
+	// The shards searched for a query of each height, and for a query of unknown height
+	private final Map<Integer, Shard[]> shardsByLevel;
+	private final Shard[] searched;
+
+	// The categories searched, or null for all of them
+	private final Set<String> categories;
+
+	/**
+	 * Splits the library into shards and builds a matcher over each.
+	 *
+	 * @param library
+	 * 				The mapping from image name to its table of parent structures
+	 * @param imageCategories
+	 * 				The category of each image; images left out are UNCATEGORISED
+	 * @param bucketWidth
+	 * 				The range of Laplacian energy each shard covers, infinite for one bucket
+	 * @param factory
+	 * 				Builds the matcher of each shard
+	 * @throws NullPointerException
+	 * 				If the library, categories or factory is null
+	 * @throws IllegalArgumentException
+	 * 				If the bucket width is not positive
+	 */
+	public ShardedMatcher(Map<String, ParentStructureTable> library, Map<String, String> imageCategories,
+			double bucketWidth, MatcherFactory factory) {
+		if(library==null) {
+			throw new NullPointerException("Library cannot be null");
+		}
+		if(imageCategories==null) {
+			throw new NullPointerException("Categories cannot be null");
+		}
+		if(factory==null) {
+			throw new NullPointerException("Factory cannot be null");
+		}
+		if(!(bucketWidth > 0)) {
+			throw new IllegalArgumentException("Bucket width must be positive");
+		}
+
+		// Find the shard of every row, keyed on its height, category and energy bucket
+		Map<String, Integer> categoryIds = new HashMap<String, Integer>();
+		List<String> categoryNames = new ArrayList<String>();
+		Map<Long, Integer> shardIds = new HashMap<Long, Integer>();
+		List<long[]> shardKeys = new ArrayList<long[]>();
+		List<float[]> shardEnergies = new ArrayList<float[]>();
+		Map<String, int[]> rowShards = new LinkedHashMap<String, int[]>();
+		float[] packed = new float[ParentStructure.FEATURE_LENGTH];
+		for(Map.Entry<String, ParentStructureTable> image : library.entrySet()) {
+			String category = imageCategories.get(image.getKey());
+			if(category == null) {
+				category = UNCATEGORISED;
+			}
+			Integer categoryId = categoryIds.get(category);
+			if(categoryId == null) {
+				categoryId = categoryNames.size();
+				categoryIds.put(category, categoryId);
+				categoryNames.add(category);
+			}
+
+			ParentStructureTable structures = image.getValue();
+			int[] shardOfRow = new int[structures.size()];
+			for(int row=0; row<structures.size(); row++) {
+				structures.packFeatures(row, packed, 0);
+				float energy = energy(packed, 0);
+				long bucket = Double.isInfinite(bucketWidth) ? 0 : (long)(energy/bucketWidth);
+				int level = structures.getPyramidHeight(row);
+				Long key = (bucket << 24) | ((long)categoryId << 8) | level;
+				Integer shardId = shardIds.get(key);
+				if(shardId == null) {
+					shardId = shardKeys.size();
+					shardIds.put(key, shardId);
+					shardKeys.add(new long[] {level, categoryId});
+					shardEnergies.add(new float[] {energy, energy});
+				}
+				float[] range = shardEnergies.get(shardId);
+				range[0] = Math.min(range[0], energy);
+				range[1] = Math.max(range[1], energy);
+				shardOfRow[row] = shardId;
+			}
+			rowShards.put(image.getKey(), shardOfRow);
+		}
+
+		// Gather each shard's rows of every image into tables of their own
+		int shardCount = shardKeys.size();
+		List<Map<String, ParentStructureTable>> shardLibraries = new ArrayList<Map<String, ParentStructureTable>>();
+		for(int s=0; s<shardCount; s++) {
+			shardLibraries.add(new LinkedHashMap<String, ParentStructureTable>());
+		}
+		int[] rows = new int[0];
+		for(Map.Entry<String, int[]> image : rowShards.entrySet()) {
+			ParentStructureTable structures = library.get(image.getKey());
+			int[] shardOfRow = image.getValue();
+			int[] counts = new int[shardCount];
+			for(int row=0; row<shardOfRow.length; row++) {
+				counts[shardOfRow[row]]++;
+			}
+			for(int s=0; s<shardCount; s++) {
+				if(counts[s] == 0) {
+					continue;
+				}
+				if(rows.length < counts[s]) {
+					rows = new int[counts[s]];
+				}
+				int count = 0;
+				for(int row=0; row<shardOfRow.length; row++) {
+					if(shardOfRow[row] == s) {
+						rows[count++] = row;
+					}
+				}
+				shardLibraries.get(s).put(image.getKey(), structures.select(rows, count));
+			}
+		}
+
+		this.shards = new Shard[shardCount];
+		this.bases = new int[shardCount];
+		int base = 0;
+		for(int s=0; s<shardCount; s++) {
+			long[] key = shardKeys.get(s);
+			float[] range = shardEnergies.get(s);
+			ParentStructureMatcher matcher = factory.build(shardLibraries.get(s));
+			this.shards[s] = new Shard((int)key[0], categoryNames.get((int)key[1]), range[0], range[1], matcher, base);
+			this.bases[s] = base;
+			base += matcher.size();
+		}
+		this.size = base;
+		this.categories = null;
+		this.shardsByLevel = groupByLevel(this.shards, null);
+		this.searched = this.shards;
+	}
+
+	// A view of the same shards searching only some categories
+	private ShardedMatcher(ShardedMatcher matcher, Set<String> categories) {
+		this.shards = matcher.shards;
+		this.bases = matcher.bases;
+		this.size = matcher.size;
+		this.categories = categories;
+		this.shardsByLevel = groupByLevel(this.shards, categories);
+		List<Shard> searched = new ArrayList<Shard>();
+		for(Shard shard : this.shards) {
+			if(categories.contains(shard.category)) {
+				searched.add(shard);
+			}
+		}
+		this.searched = searched.toArray(new Shard[searched.size()]);
+	}
+
+	private static Map<Integer, Shard[]> groupByLevel(Shard[] shards, Set<String> categories) {
+		Map<Integer, List<Shard>> grouped = new HashMap<Integer, List<Shard>>();
+		for(Shard shard : shards) {
+			if(categories != null && !categories.contains(shard.category)) {
+				continue;
+			}
+			List<Shard> level = grouped.get(shard.level);
+			if(level == null) {
+				level = new ArrayList<Shard>();
+				grouped.put(shard.level, level);
+			}
+			level.add(shard);
+		}
+		Map<Integer, Shard[]> byLevel = new HashMap<Integer, Shard[]>();
+		for(Map.Entry<Integer, List<Shard>> level : grouped.entrySet()) {
+			byLevel.put(level.getKey(), level.getValue().toArray(new Shard[level.getValue().size()]));
+		}
+		return byLevel;
+	}
+
+	/**
+	 * A view of this matcher that only searches the given categories, sharing
+	 * its shards and entry numbers.
+	 *
+	 * @param categories
+	 * 				The categories searched, UNCATEGORISED for images without one
+	 * @throws NullPointerException
+	 * 				If the categories are null
+	 */
+	public ShardedMatcher restrictTo(Collection<String> categories) {
+		if(categories==null) {
+			throw new NullPointerException("Categories cannot be null");
+		}
+		return new ShardedMatcher(this, new HashSet<String>(categories));
+	}
+
+	/**
+	 * The length of the packed Laplacian values of a structure's own level,
+	 * which the shards are bucketed on.
+	 */
+	static float energy(float[] features, int offset) {
+		float sum = 0;
+		for(int c=0; c<3; c++) {
+			sum += features[offset+c]*features[offset+c];
+		}
+		return (float)Math.sqrt(sum);
+	}
+
+	@Override
+	public int findMatch(float[] query, int offset, double threshold) {
+		int[] result = new int[1];
+		SearchPolicy.Search search = SearchPolicy.best().newSearch(0);
+		return findWithin(query, offset, -1, threshold, search, result) > 0 ? result[0] : -1;
+	}
+
+	@Override
+	public int findNearest(float[] query, int offset, int k, int[] result) {
+		if(k < 1) {
+			return 0;
+		}
+		SearchPolicy.Search search = SearchPolicy.topK(k).newSearch(0);
+		return findWithin(query, offset, -1, Double.POSITIVE_INFINITY, search, result);
+	}
+
+	@Override
+	public int findWithin(float[] query, int offset, int level, double threshold, SearchPolicy.Search search, int[] result) {
+		Shard[] candidates = level < 0 ? this.searched : this.shardsByLevel.get(level);
+		if(candidates == null) {
+			return 0;
+		}
+
+		// Visit the shards nearest in energy first
+		float energy = energy(query, offset);
+		int shardCount = candidates.length;
+		int k = search.getMaxResults();
+		Scratch scratch = (Scratch)search.getScratch(this);
+		if(scratch == null || scratch.bounds.length < shardCount) {
+			// Sized for every shard, so one scratch serves the queries of any height
+			scratch = new Scratch(Math.max(shardCount, this.searched.length), k);
+			search.putScratch(this, scratch);
+		}
+		double[] bounds = scratch.bounds;
+		Shard[] order = scratch.order;
+		for(int s=0; s<shardCount; s++) {
+			double bound = candidates[s].lowerBound(energy);
+			int j = s;
+			for(; j > 0 && bounds[j-1] > bound; j--) {
+				bounds[j] = bounds[j-1];
+				order[j] = order[j-1];
+			}
+			bounds[j] = bound;
+			order[j] = candidates[s];
+		}
+
+		int[] shardResult = scratch.shardResult;
+		double[] distances = scratch.distances;
+		int found = 0;
+		for(int s=0; s<shardCount; s++) {
+			// The worst match kept, once there are enough of them, bounds what is still worth finding
+			double limit = found == k ? Math.min(threshold, distances[k-1]) : threshold;
+			if(bounds[s] >= limit) {
+				break;
+			}
+			if(found > 0 && (search.isFirstOnly() || search.isExpired())) {
+				if(search.isExpired()) {
+					search.markCutShort();
+				}
+				break;
+			}
+
+			Shard shard = order[s];
+			int shardFound = shard.matcher.findWithin(query, offset, level, limit, search, shardResult);
+			for(int i=0; i<shardFound; i++) {
+				double distance = shard.matcher.getDistance(query, offset, shardResult[i]);
+				// Insert into the matches kept so far, nearest first
+				int j = Math.min(found, k-1);
+				if(found == k && distance >= distances[j]) {
+					continue;
+				}
+				for(; j > 0 && distances[j-1] > distance; j--) {
+					distances[j] = distances[j-1];
+					result[j] = result[j-1];
+				}
+				distances[j] = distance;
+				result[j] = shard.base + shardResult[i];
+				found = Math.min(found+1, k);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public double getDistance(float[] query, int offset, int entry) {
+		Shard shard = shardOf(entry);
+		return shard.matcher.getDistance(query, offset, entry-shard.base);
+	}
+
+	private Shard shardOf(int entry) {
+		int s = Arrays.binarySearch(this.bases, entry);
+		// Between bases, the shard is the one starting before the insertion point
+		return this.shards[s >= 0 ? s : -s-2];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String getImageName(int entry) {
+		Shard shard = shardOf(entry);
+		return shard.matcher.getImageName(entry-shard.base);
+	}
+
+	@Override
+	public int getPyramidHeight(int entry) {
+		return shardOf(entry).level;
+	}
+
+	@Override
+	public int getPixelX(int entry) {
+		Shard shard = shardOf(entry);
+		return shard.matcher.getPixelX(entry-shard.base);
+	}
+
+	@Override
+	public int getPixelY(int entry) {
+		Shard shard = shardOf(entry);
+		return shard.matcher.getPixelY(entry-shard.base);
+	}
+
+	/**
+	 * @return The number of shards searched across every height
+	 */
+	public int getShardCount() {
+		return searched.length;
+	}
+
+	/**
+	 * @return The number of structures in the shards searched, out of size()
+	 */
+	public int getSearchedSize() {
+		int searchedSize = 0;
+		for(Shard shard : this.searched) {
+			searchedSize += shard.matcher.size();
+		}
+		return searchedSize;
+	}
+
+	/**
+	 * @return The categories searched, or null for every one
+	 */
+	public Set<String> getCategories() {
+		return categories;
+	}
+}
@@ -0,0 +1,222 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * The high-res library pixels that hallucination reconstructs from.
+ *
+ * Each library image is kept as the Gaussian level of its pyramid at which a
+ * cell of the lowest height structures are taken from is PATCH_SIZE pixels
+ * across, as 3 bytes of BGR per pixel in row order. The patches of every
+ * structure tile that level without repeating a pixel, so the store is the
+ * structures' patches packed side by side and grows with the number of
+ * structures rather than with the area of the library images, which can be
+ * released as soon as they are deconstructed.
+ *
+ * The cells tile the level, so the level is all the structures point at, but
+ * at about 768 bytes per lowest structure it is far more than the heap should
+ * hold for a large library. Sources loaded from the library cache are left
+ * mapped from the file, and given a spill directory, sources copied out of
+ * Mats are written to an unlinked file there and mapped back, so neither
+ * counts against the Java heap. Thread safe.
+ */
+public class SourcePixels {
+
+	// The width in source pixels of one cell of the lowest height
+	public static final int PATCH_SIZE = 16;
+
+	private static final int CHANNELS = 3;
+
+	private static final String TAG = "SourcePixels";
+
+	private final int level;
+
+	private final File spillDirectory;
+	// The file sources are spilled to and the bytes reserved in it so far, opened on the first spill
+	private RandomAccessFile spillFile;
+	private long spillLength;
+
+	private final ConcurrentHashMap<String, Source> sources;
+
+	// The kept pixels of one image
+	static final class Source {
+		final int width;
+		final int height;
+		final ByteBuffer pixels;
+
+		Source(int width, int height, ByteBuffer pixels) {
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * @param level
+	 * 				The pyramid level the images are kept at
+	 * @throws IllegalArgumentException
+	 * 				If the level is negative
+	 */
+	public SourcePixels(int level) {
+		this(level, null);
+	}
+
+	/**
+	 * @param level
+	 * 				The pyramid level the images are kept at
+	 * @param spillDirectory
+	 * 				Where the pixels of images put from Mats are written and mapped back from,
+	 * 				or null to copy them onto the heap
+	 * @throws IllegalArgumentException
+	 * 				If the level is negative
+	 */
+	public SourcePixels(int level, File spillDirectory) {
+		if(level<0) {
+			throw new IllegalArgumentException("Level cannot be negative");
+		}
+		this.level = level;
+		this.spillDirectory = spillDirectory;
+		this.sources = new ConcurrentHashMap<String, Source>();
+	}
+
+	/**
+	 * The level to keep the sources at for structures taken from the given
+	 * lowest height, whose cells are 2^(height+1) pixels of the full image across.
+	 */
+	public static int levelFor(int lowestLevel) {
+		return Math.max(0, lowestLevel+1-Integer.numberOfTrailingZeros(PATCH_SIZE));
+	}
+
+	/**
+	 * Copies out a library image at the store's level. The image may be
+	 * released afterwards.
+	 *
+	 * @param name
+	 * 				The library image name
+	 * @param image
+	 * 				The Gaussian level of the image, as 8 bit BGR
+	 * @throws NullPointerException
+	 * 				If the name or image is null
+	 * @throws IllegalArgumentException
+	 * 				If the image is not 8 bit BGR
+	 */
+	public void put(String name, Mat image) {
+		if(name==null||image==null) {
+			throw new NullPointerException("Name and image cannot be null");
+		}
+		if(image.type() != CvType.CV_8UC3) {
+			throw new IllegalArgumentException("Source pixels must be 8 bit BGR");
+		}
+		ByteBuffer pixels = spill(image);
+		if(pixels == null) {
+			byte[] copy = new byte[image.cols()*image.rows()*CHANNELS];
+			if(copy.length > 0) {
+				if(image.isContinuous()) {
+					image.get(0, 0, copy);
+				} else {
+					Mat continuous = image.clone();
+					continuous.get(0, 0, copy);
+					continuous.release();
+				}
+			}
+			pixels = ByteBuffer.wrap(copy);
+		}
+		this.sources.put(name, new Source(image.cols(), image.rows(), pixels));
+	}
+
+	// Writes an image to the spill file a row at a time and maps it back, or gives null to keep it on the heap
+	private ByteBuffer spill(Mat image) {
+		int rowBytes = image.cols()*CHANNELS;
+		long length = (long)rowBytes*image.rows();
+		if(this.spillDirectory == null || length == 0) {
+			return null;
+		}
+		try {
+			FileChannel channel;
+			long start;
+			synchronized(this) {
+				if(this.spillFile == null) {
+					File file = File.createTempFile("library", ".pixels", this.spillDirectory);
+					this.spillFile = new RandomAccessFile(file, "rw");
+					// The mappings outlive the file's name, which nothing else needs
+					if(!file.delete()) {
+						file.deleteOnExit();
+					}
+					this.spillLength = 0;
+				}
+				channel = this.spillFile.getChannel();
+				start = this.spillLength;
+				this.spillLength += length;
+			}
+			// Each image has its own range, so the rows are written outside the lock
+			byte[] row = new byte[rowBytes];
+			ByteBuffer rowBuffer = ByteBuffer.wrap(row);
+			for(int y=0; y<image.rows(); y++) {
+				image.get(y, 0, row);
+				rowBuffer.clear();
+				long position = start + (long)y*rowBytes;
+				while(rowBuffer.hasRemaining()) {
+					position += channel.write(rowBuffer, position);
+				}
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		} catch (IOException e) {
+			HallucinationLog.i(TAG, "Could not spill source pixels, keeping them on the heap: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the spill file once no more images are to be put. The sources
+	 * already spilled stay mapped; a later put opens a new file.
+	 */
+	public synchronized void closeSpill() {
+		if(this.spillFile != null) {
+			try {
+				this.spillFile.close();
+			} catch (IOException e) {
+				HallucinationLog.i(TAG, "Could not close spill file: " + e.getMessage());
+			}
+			this.spillFile = null;
+		}
+	}
+
+	/**
+	 * Adds a source that was packed elsewhere, such as mapped from the library cache.
+	 * The buffer is used directly rather than copied.
+	 */
+	void put(String name, int width, int height, ByteBuffer pixels) {
+		this.sources.put(name, new Source(width, height, pixels));
+	}
+
+	Source get(String name) {
+		return this.sources.get(name);
+	}
+
+	public boolean contains(String name) {
+		return this.sources.containsKey(name);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The number of pixel bytes kept over every image
+	 */
+	public long getByteCount() {
+		long bytes = 0;
+		for(Source source : this.sources.values()) {
+			bytes += source.pixels.limit();
+		}
+		return bytes;
+	}
+}
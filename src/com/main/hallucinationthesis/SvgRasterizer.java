@@ -0,0 +1,383 @@
+package com.main.hallucinationthesis;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Draws an SVG library image straight at whatever resolution is wanted, so
+ * that the library can be deconstructed from the vector source itself rather
+ * than from a raster of it shrunk down again.
+ *
+ * Only the plain shapes and text of simple sources such as svgTest.svg are
+ * understood: text and tspan, rect, line, circle, polygon and polyline,
+ * grouped by g, each with fill, stroke, stroke-width and font-size given as
+ * attributes or in a style. Paths, transforms and gradients are skipped. Text
+ * is drawn in OpenCV's Hershey sans serif whatever the font family, sized so
+ * that its capitals are as tall as the font size's.
+ *
+ * The rasters are 8 bit BGR on white, as imread would give for the same image.
+ * The file is parsed once, and can then be drawn any number of times. Thread
+ * safe, drawing one raster at a time.
+ */
+public class SvgRasterizer {
+
+	private static final String TAG = "SvgRasterizer";
+
+	private static final int FONT = Core.FONT_HERSHEY_SIMPLEX;
+
+	// The height of a capital in most sans serif fonts, as a fraction of the font size
+	private static final double CAP_HEIGHT = 0.72;
+
+	// Coordinates are given to OpenCV in sixteenths of a pixel
+	private static final int SHIFT = 4;
+
+	// The height of a capital at font scale 1, measured on first use
+	private static double capHeight;
+
+	private final double width;
+	private final double height;
+	private final Element root;
+
+	/**
+	 * @return Whether the file is an SVG source this class can draw
+	 */
+	public static boolean isVector(File file) {
+		return file.getName().toLowerCase(Locale.US).endsWith(".svg");
+	}
+
+	/**
+	 * Parses an SVG file.
+	 *
+	 * @param file
+	 * 				The SVG file
+	 * @throws NullPointerException
+	 * 				If the file is null
+	 * @throws IllegalArgumentException
+	 * 				If the file cannot be parsed, or does not give its width and height
+	 */
+	public SvgRasterizer(File file) {
+		if(file==null) {
+			throw new NullPointerException("File cannot be null");
+		}
+		try {
+			this.root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file).getDocumentElement();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Could not parse " + file + ": " + e.getMessage(), e);
+		}
+		this.width = length(this.root.getAttribute("width"), -1);
+		this.height = length(this.root.getAttribute("height"), -1);
+		if(this.width <= 0 || this.height <= 0) {
+			throw new IllegalArgumentException("The SVG must give its width and height in pixels: " + file);
+		}
+	}
+
+	/**
+	 * Draws the whole image.
+	 *
+	 * @param scale
+	 * 				The size of the raster relative to the SVG's own, such as 1/2^n for pyramid level n
+	 * @return A new raster of the SVG's size times the scale, rounded down as pyrDown would
+	 */
+	public Mat rasterize(double scale) {
+		return rasterize(scale, 0, 0, getWidth(scale), getHeight(scale));
+	}
+
+	/**
+	 * Draws one region of the image, costing no more than the region's own size.
+	 *
+	 * @param scale
+	 * 				The size of the raster relative to the SVG's own
+	 * @param x
+	 * 				The left of the region, in pixels of the scaled raster
+	 * @param y
+	 * 				The top of the region, in pixels of the scaled raster
+	 * @throws IllegalArgumentException
+	 * 				If the scale or the region's size is not positive
+	 */
+	public synchronized Mat rasterize(double scale, int x, int y, int regionWidth, int regionHeight) {
+		if(!(scale > 0) || regionWidth < 1 || regionHeight < 1) {
+			throw new IllegalArgumentException("Scale and region must be positive");
+		}
+		Mat raster = new Mat(regionHeight, regionWidth, CvType.CV_8UC3, new Scalar(255, 255, 255));
+		Style style = new Style();
+		draw(this.root, raster, new Transform(scale, x, y), style);
+		return raster;
+	}
+
+	/**
+	 * @return The width of a raster drawn at the scale, rounded down
+	 */
+	public int getWidth(double scale) {
+		return (int)Math.floor(this.width*scale);
+	}
+
+	/**
+	 * @return The height of a raster drawn at the scale, rounded down
+	 */
+	public int getHeight(double scale) {
+		return (int)Math.floor(this.height*scale);
+	}
+
+	// The inherited presentation of an element
+	private static final class Style implements Cloneable {
+		Scalar fill = new Scalar(0, 0, 0);
+		Scalar stroke = null;
+		double strokeWidth = 1;
+		double fontSize = 16;
+
+		Style inherit(Element element) {
+			Style style;
+			try {
+				style = (Style)this.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+			Map<String, String> properties = properties(element);
+			if(properties.containsKey("fill")) {
+				style.fill = colour(properties.get("fill"), style.fill);
+			}
+			if(properties.containsKey("stroke")) {
+				style.stroke = colour(properties.get("stroke"), style.stroke);
+			}
+			style.strokeWidth = length(properties.get("stroke-width"), style.strokeWidth);
+			style.fontSize = length(properties.get("font-size"), style.fontSize);
+			return style;
+		}
+	}
+
+	// From SVG user units to the pixels of the region being drawn
+	private static final class Transform {
+		final double scale;
+		final int x;
+		final int y;
+
+		Transform(double scale, int x, int y) {
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+		}
+
+		Point point(double px, double py) {
+			return new Point(px*this.scale-this.x, py*this.scale-this.y);
+		}
+
+		// A point in sixteenths of a pixel, for the drawing calls that take a shift
+		Point fixed(double px, double py) {
+			return new Point(Math.round((px*this.scale-this.x)*(1 << SHIFT)), Math.round((py*this.scale-this.y)*(1 << SHIFT)));
+		}
+	}
+
+	private void draw(Element element, Mat raster, Transform transform, Style inherited) {
+		Style style = inherited.inherit(element);
+		String name = element.getTagName();
+		if("svg".equals(name) || "g".equals(name)) {
+			drawChildren(element, raster, transform, style);
+		} else if("text".equals(name)) {
+			drawText(element, raster, transform, style);
+		} else if("rect".equals(name)) {
+			double x = length(element.getAttribute("x"), 0);
+			double y = length(element.getAttribute("y"), 0);
+			double w = length(element.getAttribute("width"), 0);
+			double h = length(element.getAttribute("height"), 0);
+			if(style.fill != null) {
+				Core.rectangle(raster, transform.fixed(x, y), transform.fixed(x+w, y+h), style.fill, -1, Core.LINE_AA, SHIFT);
+			}
+			if(style.stroke != null) {
+				Core.rectangle(raster, transform.fixed(x, y), transform.fixed(x+w, y+h), style.stroke,
+						thickness(style, transform), Core.LINE_AA, SHIFT);
+			}
+		} else if("line".equals(name)) {
+			if(style.stroke != null) {
+				Core.line(raster, transform.fixed(length(element.getAttribute("x1"), 0), length(element.getAttribute("y1"), 0)),
+						transform.fixed(length(element.getAttribute("x2"), 0), length(element.getAttribute("y2"), 0)),
+						style.stroke, thickness(style, transform), Core.LINE_AA, SHIFT);
+			}
+		} else if("circle".equals(name)) {
+			Point centre = transform.fixed(length(element.getAttribute("cx"), 0), length(element.getAttribute("cy"), 0));
+			int radius = (int)Math.round(length(element.getAttribute("r"), 0)*transform.scale*(1 << SHIFT));
+			if(style.fill != null) {
+				Core.circle(raster, centre, radius, style.fill, -1, Core.LINE_AA, SHIFT);
+			}
+			if(style.stroke != null) {
+				Core.circle(raster, centre, radius, style.stroke, thickness(style, transform), Core.LINE_AA, SHIFT);
+			}
+		} else if("polygon".equals(name) || "polyline".equals(name)) {
+			List<MatOfPoint> shape = new ArrayList<MatOfPoint>();
+			shape.add(points(element.getAttribute("points"), transform));
+			boolean closed = "polygon".equals(name);
+			if(closed && style.fill != null) {
+				Core.fillPoly(raster, shape, style.fill, Core.LINE_AA, SHIFT, new Point());
+			}
+			if(style.stroke != null) {
+				Core.polylines(raster, shape, closed, style.stroke, thickness(style, transform), Core.LINE_AA, SHIFT);
+			}
+			shape.get(0).release();
+		} else {
+			HallucinationLog.i(TAG, "Skipping unsupported element " + name);
+		}
+	}
+
+	private void drawChildren(Element element, Mat raster, Transform transform, Style style) {
+		NodeList children = element.getChildNodes();
+		for(int i=0; i<children.getLength(); i++) {
+			if(children.item(i).getNodeType() == Node.ELEMENT_NODE) {
+				draw((Element)children.item(i), raster, transform, style);
+			}
+		}
+	}
+
+	// Text runs from its x and y, with each tspan starting again from its own where it gives them
+	private void drawText(Element text, Mat raster, Transform transform, Style style) {
+		double[] position = {length(text.getAttribute("x"), 0), length(text.getAttribute("y"), 0)};
+		StringBuilder run = new StringBuilder();
+		NodeList children = text.getChildNodes();
+		for(int i=0; i<children.getLength(); i++) {
+			Node child = children.item(i);
+			if(child.getNodeType() == Node.TEXT_NODE) {
+				run.append(child.getNodeValue());
+			} else if(child.getNodeType() == Node.ELEMENT_NODE && "tspan".equals(((Element)child).getTagName())) {
+				Element span = (Element)child;
+				position = drawRun(run.toString(), position, raster, transform, style);
+				run.setLength(0);
+				position[0] = length(span.getAttribute("x"), position[0]);
+				position[1] = length(span.getAttribute("y"), position[1]);
+				position = drawRun(span.getTextContent(), position, raster, transform, style.inherit(span));
+			}
+		}
+		drawRun(run.toString(), position, raster, transform, style);
+	}
+
+	// Draws one run of text from its baseline start, returning where the next run starts
+	private double[] drawRun(String content, double[] position, Mat raster, Transform transform, Style style) {
+		// SVG drops line breaks and collapses spaces, trimming them from the ends
+		String text = content.replaceAll("[\\r\\n]", "").replace('\t', ' ').replaceAll(" +", " ").trim();
+		if(text.isEmpty() || style.fill == null) {
+			return position;
+		}
+		double pixelSize = style.fontSize*transform.scale;
+		double fontScale = pixelSize*CAP_HEIGHT/capHeight();
+		int thickness = Math.max(1, (int)Math.round(pixelSize/16));
+		int[] baseline = new int[1];
+		double advance = Core.getTextSize(text, FONT, fontScale, thickness, baseline).width/transform.scale;
+		Core.putText(raster, text, transform.point(position[0], position[1]), FONT, fontScale, style.fill, thickness,
+				Core.LINE_AA, false);
+		return new double[] {position[0]+advance, position[1]};
+	}
+
+	// The height of a capital drawn at font scale 1
+	private static synchronized double capHeight() {
+		if(capHeight == 0) {
+			capHeight = Core.getTextSize("X", FONT, 1, 1, new int[1]).height;
+		}
+		return capHeight;
+	}
+
+	private static int thickness(Style style, Transform transform) {
+		return Math.max(1, (int)Math.round(style.strokeWidth*transform.scale));
+	}
+
+	private static MatOfPoint points(String list, Transform transform) {
+		String[] values = list.trim().split("[\\s,]+");
+		List<Point> points = new ArrayList<Point>();
+		for(int i=0; i+1<values.length; i+=2) {
+			points.add(transform.fixed(Double.parseDouble(values[i]), Double.parseDouble(values[i+1])));
+		}
+		MatOfPoint shape = new MatOfPoint();
+		shape.fromList(points);
+		return shape;
+	}
+
+	// The presentation attributes of an element, with any in its style taking precedence
+	private static Map<String, String> properties(Element element) {
+		Map<String, String> properties = new HashMap<String, String>();
+		for(String name : new String[] {"fill", "stroke", "stroke-width", "font-size"}) {
+			if(element.hasAttribute(name)) {
+				properties.put(name, element.getAttribute(name).trim());
+			}
+		}
+		for(String declaration : element.getAttribute("style").split(";")) {
+			int colon = declaration.indexOf(':');
+			if(colon > 0) {
+				properties.put(declaration.substring(0, colon).trim(), declaration.substring(colon+1).trim());
+			}
+		}
+		return properties;
+	}
+
+	// A length in user units, ignoring a px suffix, or the fallback if there is none
+	private static double length(String value, double fallback) {
+		if(value == null || value.trim().isEmpty()) {
+			return fallback;
+		}
+		String number = value.trim();
+		if(number.endsWith("px")) {
+			number = number.substring(0, number.length()-2);
+		}
+		try {
+			return Double.parseDouble(number);
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	private static final Map<String, Scalar> NAMED_COLOURS = new HashMap<String, Scalar>();
+	static {
+		NAMED_COLOURS.put("black", new Scalar(0, 0, 0));
+		NAMED_COLOURS.put("white", new Scalar(255, 255, 255));
+		NAMED_COLOURS.put("red", new Scalar(0, 0, 255));
+		NAMED_COLOURS.put("green", new Scalar(0, 128, 0));
+		NAMED_COLOURS.put("blue", new Scalar(255, 0, 0));
+		NAMED_COLOURS.put("gray", new Scalar(128, 128, 128));
+		NAMED_COLOURS.put("grey", new Scalar(128, 128, 128));
+	}
+
+	// A colour as BGR, null for none, or the fallback if it is not understood
+	private static Scalar colour(String value, Scalar fallback) {
+		String colour = value.trim().toLowerCase(Locale.US);
+		if("none".equals(colour)) {
+			return null;
+		}
+		if(NAMED_COLOURS.containsKey(colour)) {
+			return NAMED_COLOURS.get(colour);
+		}
+		try {
+			if(colour.matches("#[0-9a-f]{6}")) {
+				int rgb = Integer.parseInt(colour.substring(1), 16);
+				return new Scalar(rgb & 0xff, (rgb >> 8) & 0xff, (rgb >> 16) & 0xff);
+			}
+			if(colour.matches("#[0-9a-f]{3}")) {
+				int r = Integer.parseInt(colour.substring(1, 2), 16);
+				int g = Integer.parseInt(colour.substring(2, 3), 16);
+				int b = Integer.parseInt(colour.substring(3, 4), 16);
+				return new Scalar(b*17, g*17, r*17);
+			}
+		} catch (NumberFormatException e) {
+			// Fall through to the fallback
+		}
+		return fallback;
+	}
+
+	public double getWidth() {
+		return width;
+	}
+
+	public double getHeight() {
+		return height;
+	}
+}
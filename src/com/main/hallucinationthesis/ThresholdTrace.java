@@ -0,0 +1,192 @@
+package com.main.hallucinationthesis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Collects the match distances seen while hallucinating, so that the
+ * matching threshold can be tuned from real data.
+ *
+ * Rather than a line per comparison, every sampled distance goes into a
+ * fixed-width histogram with exact min, max and mean, and one summary row
+ * of percentiles is appended to a CSV file per hallucination. Each matching
+ * thread records into its own Recorder without any locking, and the recorders
+ * are merged once at the end. Tracing is off unless a trace is given to the
+ * processor, in which case the matching loop does no extra work at all.
+ */
+public class ThresholdTrace {
+
+	private static final String TAG = "ThresholdTrace";
+
+	private static final double[] PERCENTILES = {50, 90, 99};
+
+	private final File sink;
+	private final int sampleEvery;
+	private final double binWidth;
+	private final int bins;
+
+	// The distances merged from every recorder since the last summary
+	private final Recorder total;
+
+	/**
+	 * Records distances for one matching thread. Not thread safe.
+	 */
+	public final class Recorder {
+		private final long[] histogram = new long[bins+1];
+		private long seen;
+		private long sampled;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		private double sum;
+
+		private Recorder() {
+		}
+
+		/**
+		 * Counts one more match and decides whether it is sampled,
+		 * so that callers only work out the distances that are recorded.
+		 *
+		 * @return Whether the distance of this match should be given to record
+		 */
+		public boolean sampleNext() {
+			return seen++ % sampleEvery == 0;
+		}
+
+		public void record(double distance) {
+			sampled++;
+			min = Math.min(min, distance);
+			max = Math.max(max, distance);
+			sum += distance;
+			// Distances beyond the last bin, including infinite ones, go in the overflow bin
+			int bin = distance >= bins*binWidth ? bins : (int)(distance/binWidth);
+			histogram[bin]++;
+		}
+
+		private void add(Recorder other) {
+			for(int b=0; b<histogram.length; b++) {
+				histogram[b] += other.histogram[b];
+			}
+			seen += other.seen;
+			sampled += other.sampled;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			sum += other.sum;
+		}
+
+		private void reset() {
+			Arrays.fill(histogram, 0);
+			seen = 0;
+			sampled = 0;
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+			sum = 0;
+		}
+
+		// The upper edge of the bin holding the given percentile, capped at the true maximum
+		private double percentile(double percent) {
+			long rank = (long)Math.ceil(sampled*percent/100);
+			long cumulative = 0;
+			for(int b=0; b<bins; b++) {
+				cumulative += histogram[b];
+				if(cumulative >= rank) {
+					return Math.min((b+1)*binWidth, max);
+				}
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * @param sink
+	 * 				The CSV file the summaries are appended to
+	 * @param sampleEvery
+	 * 				Sample one in this many distances, 1 to sample them all
+	 * @param binWidth
+	 * 				The width of each histogram bin
+	 * @param bins
+	 * 				The number of histogram bins before the overflow bin
+	 * @throws NullPointerException
+	 * 				If the sink is null
+	 * @throws IllegalArgumentException
+	 * 				If any of the numbers are not positive
+	 */
+	public ThresholdTrace(File sink, int sampleEvery, double binWidth, int bins) {
+		if(sink==null) {
+			throw new NullPointerException("Sink cannot be null");
+		}
+		if(sampleEvery<1||binWidth<=0||bins<1) {
+			throw new IllegalArgumentException("Sampling, bin width and bins must be positive");
+		}
+		this.sink = sink;
+		this.sampleEvery = sampleEvery;
+		this.binWidth = binWidth;
+		this.bins = bins;
+		this.total = new Recorder();
+	}
+
+	public Recorder newRecorder() {
+		return new Recorder();
+	}
+
+	/**
+	 * Adds a finished recorder into the current summary.
+	 */
+	public synchronized void merge(Recorder recorder) {
+		this.total.add(recorder);
+	}
+
+	/**
+	 * Appends the current summary to the sink as one CSV row and starts a new one.
+	 *
+	 * @param label
+	 * 				Identifies the hallucination the row describes
+	 */
+	public synchronized void writeSummary(String label) {
+		boolean header = !this.sink.exists() || this.sink.length() == 0;
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(this.sink, true));
+			if(header) {
+				writer.write("label,seen,sampled,min,max,mean");
+				for(int p=0; p<PERCENTILES.length; p++) {
+					writer.write(",p" + (int)PERCENTILES[p]);
+				}
+				writer.write("\n");
+			}
+			StringBuilder row = new StringBuilder();
+			row.append(label).append(',').append(this.total.seen).append(',').append(this.total.sampled);
+			if(this.total.sampled > 0) {
+				row.append(',').append(this.total.min).append(',').append(this.total.max)
+					.append(',').append(this.total.sum/this.total.sampled);
+				for(int p=0; p<PERCENTILES.length; p++) {
+					row.append(',').append(this.total.percentile(PERCENTILES[p]));
+				}
+			} else {
+				row.append(",,,");
+				for(int p=0; p<PERCENTILES.length; p++) {
+					row.append(',');
+				}
+			}
+			writer.write(row.append('\n').toString());
+		} catch (IOException e) {
+			HallucinationLog.i(TAG, "Could not write trace: " + e.getMessage());
+		} finally {
+			if(writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					HallucinationLog.i(TAG, "Could not close trace: " + e.getMessage());
+				}
+			}
+			this.total.reset();
+		}
+	}
+
+	public File getSink() {
+		return sink;
+	}
+}
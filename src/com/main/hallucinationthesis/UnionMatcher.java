@@ -0,0 +1,183 @@
+package com.main.hallucinationthesis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Searches several matchers over disjoint sets of library images as though
+ * they were one, such as the matcher over the images folded together so far
+ * and one for each image finished since, while a library is still being built.
+ *
+ * Every part is searched with the threshold narrowed to the worst match kept
+ * so far, and the matches of all of them are kept nearest first, so the parts
+ * must measure distance the same way. Entries are numbered part after part.
+ */
+public class UnionMatcher implements ParentStructureMatcher {
+
+	// The buffers of one thread's queries, kept in its SearchPolicy.Search
+	private static final class Scratch {
+		final int[] partResult;
+		final double[] distances;
+
+		Scratch(int k) {
+			this.partResult = new int[k];
+			this.distances = new double[k];
+		}
+	}
+
+	private final ParentStructureMatcher[] parts;
+
+	// The entry number of each part's first entry
+	private final int[] bases;
+	private final int size;
+
+	/**
+	 * @param matchers
+	 * 				The matchers searched, at least one; those without entries are left out
+	 * @throws NullPointerException
+	 * 				If the matchers are null
+	 * @throws IllegalArgumentException
+	 * 				If there are no matchers
+	 */
+	public UnionMatcher(List<? extends ParentStructureMatcher> matchers) {
+		if(matchers==null) {
+			throw new NullPointerException("Matchers cannot be null");
+		}
+		if(matchers.isEmpty()) {
+			throw new IllegalArgumentException("At least one matcher is required");
+		}
+		List<ParentStructureMatcher> kept = new ArrayList<ParentStructureMatcher>(matchers.size());
+		for(ParentStructureMatcher matcher : matchers) {
+			if(matcher.size() > 0) {
+				kept.add(matcher);
+			}
+		}
+		if(kept.isEmpty()) {
+			kept.add(matchers.get(0));
+		}
+		this.parts = kept.toArray(new ParentStructureMatcher[kept.size()]);
+		this.bases = new int[this.parts.length];
+		int entries = 0;
+		for(int p=0; p<this.parts.length; p++) {
+			this.bases[p] = entries;
+			entries += this.parts[p].size();
+		}
+		this.size = entries;
+	}
+
+	@Override
+	public int findMatch(float[] query, int offset, double threshold) {
+		int best = -1;
+		double bestDistance = threshold;
+		for(int p=0; p<this.parts.length; p++) {
+			int entry = this.parts[p].findMatch(query, offset, bestDistance);
+			if(entry >= 0) {
+				double distance = this.parts[p].getDistance(query, offset, entry);
+				if(best < 0 || distance < bestDistance) {
+					best = this.bases[p] + entry;
+					bestDistance = distance;
+				}
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public int findNearest(float[] query, int offset, int k, int[] result) {
+		if(k < 1) {
+			return 0;
+		}
+		SearchPolicy.Search search = SearchPolicy.topK(k).newSearch(0);
+		return findWithin(query, offset, -1, Double.POSITIVE_INFINITY, search, result);
+	}
+
+	@Override
+	public int findWithin(float[] query, int offset, int level, double threshold, SearchPolicy.Search search, int[] result) {
+		int k = search.getMaxResults();
+		Scratch scratch = (Scratch)search.getScratch(this);
+		if(scratch == null) {
+			scratch = new Scratch(k);
+			search.putScratch(this, scratch);
+		}
+		int[] partResult = scratch.partResult;
+		double[] distances = scratch.distances;
+		int found = 0;
+		for(int p=0; p<this.parts.length; p++) {
+			if(found > 0 && (search.isFirstOnly() || search.isExpired())) {
+				if(search.isExpired()) {
+					search.markCutShort();
+				}
+				break;
+			}
+			// The worst match kept, once there are enough of them, bounds what is still worth finding
+			double limit = found == k ? Math.min(threshold, distances[k-1]) : threshold;
+			ParentStructureMatcher part = this.parts[p];
+			int partFound = part.findWithin(query, offset, level, limit, search, partResult);
+			for(int i=0; i<partFound; i++) {
+				double distance = part.getDistance(query, offset, partResult[i]);
+				// Insert into the matches kept so far, nearest first
+				int j = Math.min(found, k-1);
+				if(found == k && distance >= distances[j]) {
+					continue;
+				}
+				for(; j > 0 && distances[j-1] > distance; j--) {
+					distances[j] = distances[j-1];
+					result[j] = result[j-1];
+				}
+				distances[j] = distance;
+				result[j] = this.bases[p] + partResult[i];
+				found = Math.min(found+1, k);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public double getDistance(float[] query, int offset, int entry) {
+		int p = partOf(entry);
+		return this.parts[p].getDistance(query, offset, entry-this.bases[p]);
+	}
+
+	private int partOf(int entry) {
+		int p = Arrays.binarySearch(this.bases, entry);
+		// Between bases, the part is the one starting before the insertion point
+		return p >= 0 ? p : -p-2;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String getImageName(int entry) {
+		int p = partOf(entry);
+		return this.parts[p].getImageName(entry-this.bases[p]);
+	}
+
+	@Override
+	public int getPyramidHeight(int entry) {
+		int p = partOf(entry);
+		return this.parts[p].getPyramidHeight(entry-this.bases[p]);
+	}
+
+	@Override
+	public int getPixelX(int entry) {
+		int p = partOf(entry);
+		return this.parts[p].getPixelX(entry-this.bases[p]);
+	}
+
+	@Override
+	public int getPixelY(int entry) {
+		int p = partOf(entry);
+		return this.parts[p].getPixelY(entry-this.bases[p]);
+	}
+
+	/**
+	 * @return The number of matchers searched
+	 */
+	public int getPartCount() {
+		return parts.length;
+	}
+}